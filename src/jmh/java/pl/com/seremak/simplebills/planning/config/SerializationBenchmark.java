@@ -0,0 +1,68 @@
+package pl.com.seremak.simplebills.planning.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pl.com.seremak.simplebills.commons.dto.queue.CategoryEventDto;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.model.Category;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static pl.com.seremak.simplebills.commons.converter.CategoryConverter.toCategory;
+import static pl.com.seremak.simplebills.commons.converter.CategoryConverter.toCategoryDeletionEventDto;
+import static pl.com.seremak.simplebills.planning.service.CategoryService.UNDEFINED;
+
+/**
+ * Messages (de)serialized with the snake_case mapper of {@link ObjectMapperConfig}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+
+    private static final String TRANSACTION_EVENT_JSON = """
+            {"username": "benchmark-user", "category_name": "food", "amount": -125.40}""";
+
+    private ObjectMapper objectMapper;
+    private TransactionEventDto transactionEventDto;
+    private byte[] transactionEventBytes;
+    private CategoryEventDto categoryEventDto;
+    private byte[] categoryEventBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = new ObjectMapperConfig().objectMapper();
+        transactionEventDto = objectMapper.readValue(TRANSACTION_EVENT_JSON, TransactionEventDto.class);
+        transactionEventBytes = objectMapper.writeValueAsBytes(transactionEventDto);
+        categoryEventDto = toCategoryDeletionEventDto(toCategory("benchmark-user", "food", Category.TransactionType.EXPENSE), UNDEFINED);
+        categoryEventBytes = objectMapper.writeValueAsBytes(categoryEventDto);
+    }
+
+    @Benchmark
+    public byte[] serializeTransactionEvent() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(transactionEventDto);
+    }
+
+    @Benchmark
+    public TransactionEventDto deserializeTransactionEvent() throws IOException {
+        return objectMapper.readValue(transactionEventBytes, TransactionEventDto.class);
+    }
+
+    @Benchmark
+    public byte[] serializeCategoryEvent() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(categoryEventDto);
+    }
+
+    @Benchmark
+    public CategoryEventDto deserializeCategoryEvent() throws IOException {
+        return objectMapper.readValue(categoryEventBytes, CategoryEventDto.class);
+    }
+}
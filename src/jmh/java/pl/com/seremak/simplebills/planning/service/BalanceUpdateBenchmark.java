@@ -0,0 +1,47 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.utils.TransactionBalanceUtils;
+import pl.com.seremak.simplebills.planning.config.ObjectMapperConfig;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance and usage deltas computed for every posted transaction, as in {@link BalanceService#updateBalance(TransactionEventDto)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BalanceUpdateBenchmark {
+
+    private static final String TRANSACTION_EVENT_JSON = """
+            {"username": "benchmark-user", "category_name": "food", "amount": -125.40}""";
+
+    private TransactionEventDto transactionEventDto;
+
+    @Setup
+    public void setUp() throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapperConfig().objectMapper();
+        transactionEventDto = objectMapper.readValue(TRANSACTION_EVENT_JSON, TransactionEventDto.class);
+    }
+
+    @Benchmark
+    public BigDecimal balanceDelta() {
+        return TransactionBalanceUtils.updateBalance(BigDecimal.ZERO, transactionEventDto);
+    }
+
+    @Benchmark
+    public BigDecimal usageDelta() {
+        return TransactionBalanceUtils.updateCategoryUsage(BigDecimal.ZERO, transactionEventDto);
+    }
+}
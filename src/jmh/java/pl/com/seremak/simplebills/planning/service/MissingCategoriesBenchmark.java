@@ -0,0 +1,57 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pl.com.seremak.simplebills.commons.model.Category;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static pl.com.seremak.simplebills.commons.converter.CategoryConverter.toCategory;
+
+/**
+ * Standard categories missing for a user, computed for every user set up and on every startup.
+ * The user has a given percentage of the standard categories already.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MissingCategoriesBenchmark {
+
+    private static final String USERNAME = "benchmark-user";
+
+    @Param({"12", "100"})
+    private int standardCategoriesCount;
+
+    @Param({"0", "50", "100"})
+    private int existingPercentage;
+
+    private List<String> incomeCategoryNames;
+    private List<String> expenseCategoryNames;
+    private List<Category> userStandardCategories;
+
+    @Setup
+    public void setUp() {
+        incomeCategoryNames = List.of("salary");
+        expenseCategoryNames = IntStream.range(0, standardCategoriesCount)
+                .mapToObj(categoryNumber -> "expense-" + categoryNumber)
+                .toList();
+        userStandardCategories = expenseCategoryNames.stream()
+                .limit(standardCategoriesCount * existingPercentage / 100L)
+                .map(categoryName -> toCategory(USERNAME, categoryName, Category.TransactionType.EXPENSE))
+                .toList();
+    }
+
+    @Benchmark
+    public Set<Category> findAllMissingCategories() {
+        return CategoryService.findAllMissingCategories(USERNAME, userStandardCategories, incomeCategoryNames, expenseCategoryNames);
+    }
+}
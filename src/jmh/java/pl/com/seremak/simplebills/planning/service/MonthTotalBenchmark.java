@@ -0,0 +1,50 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import reactor.core.publisher.Flux;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Month total appended to CategoryUsageLimits of each month of a range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MonthTotalBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int categoriesCount;
+
+    private List<CategoryUsageLimit> categoryUsageLimits;
+
+    @Setup
+    public void setUp() {
+        categoryUsageLimits = IntStream.range(0, categoriesCount)
+                .mapToObj(categoryNumber -> CategoryUsageLimit.builder()
+                        .username("benchmark-user")
+                        .categoryName("category-" + categoryNumber)
+                        .yearMonth("2026-10")
+                        .usage(BigDecimal.valueOf(categoryNumber, 2))
+                        .limit(categoryNumber % 2 == 0 ? BigDecimal.valueOf(1000) : null)
+                        .build())
+                .toList();
+    }
+
+    @Benchmark
+    public CategoryUsageLimit appendMonthTotal() {
+        return CategoryUsageLimitService.appendMonthTotal(Flux.fromIterable(categoryUsageLimits))
+                .blockLast();
+    }
+}
@@ -2,10 +2,12 @@ package pl.com.seremak.simplebills.planning;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.reactive.config.EnableWebFlux;
 
 @SpringBootApplication
 @EnableWebFlux
+@EnableScheduling
 public class PlanningApplication {
 
     public static void main(final String[] args) {
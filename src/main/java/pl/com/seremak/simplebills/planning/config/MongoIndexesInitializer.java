@@ -0,0 +1,136 @@
+package pl.com.seremak.simplebills.planning.config;
+
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Ensures indexes used by hot queries of planning collections and checks with explain that these queries do not scan
+ * whole collections. Runs before other startup jobs, so they already use the indexes.
+ */
+@Slf4j
+@Component
+public class MongoIndexesInitializer {
+
+    private static final String USERNAME_FIELD = "username";
+    private static final String NAME_FIELD = "name";
+    private static final String TYPE_FIELD = "type";
+    private static final String CATEGORY_NAME_FIELD = "categoryName";
+    private static final String YEAR_MONTH_FIELD = "yearMonth";
+    private static final String COLLECTION_SCAN_STAGE = "COLLSCAN";
+    private static final String SAMPLE_VALUE = "index-check";
+    private static final String COUNT_FIELD = "count";
+    private static final int REPORTED_DUPLICATES_LIMIT = 10;
+    private static final String UNIQUE_INDEX_ERROR_MSG = "Cannot create unique index %s of %s collection. Duplicated keys: %s";
+    private static final List<IndexDefinition> INDEX_DEFINITIONS = List.of(
+            new IndexDefinition(Category.class, List.of(USERNAME_FIELD, NAME_FIELD), List.of(
+                    Filters.eq(USERNAME_FIELD, SAMPLE_VALUE),
+                    Filters.and(Filters.eq(USERNAME_FIELD, SAMPLE_VALUE), Filters.eq(NAME_FIELD, SAMPLE_VALUE)),
+                    Filters.and(Filters.eq(USERNAME_FIELD, SAMPLE_VALUE), Filters.eq(TYPE_FIELD, Category.Type.STANDARD.name())))),
+            new IndexDefinition(CategoryUsageLimit.class, List.of(USERNAME_FIELD, YEAR_MONTH_FIELD, CATEGORY_NAME_FIELD), List.of(
+                    Filters.and(Filters.eq(USERNAME_FIELD, SAMPLE_VALUE), Filters.eq(YEAR_MONTH_FIELD, SAMPLE_VALUE)),
+                    Filters.and(Filters.eq(USERNAME_FIELD, SAMPLE_VALUE), Filters.eq(CATEGORY_NAME_FIELD, SAMPLE_VALUE), Filters.eq(YEAR_MONTH_FIELD, SAMPLE_VALUE)))),
+            new IndexDefinition(Balance.class, List.of(USERNAME_FIELD), List.of(
+                    Filters.eq(USERNAME_FIELD, SAMPLE_VALUE))));
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final boolean failOnCollectionScan;
+
+    public MongoIndexesInitializer(final ReactiveMongoTemplate mongoTemplate,
+                                   @Value("${custom-properties.mongo.fail-on-collection-scan:false}") final boolean failOnCollectionScan) {
+        this.mongoTemplate = mongoTemplate;
+        this.failOnCollectionScan = failOnCollectionScan;
+    }
+
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        log.info("Ensuring indexes of planning collections...");
+        Flux.fromIterable(INDEX_DEFINITIONS)
+                .concatMap(indexDefinition -> ensureIndex(indexDefinition)
+                        .thenMany(Flux.fromIterable(indexDefinition.sampleFilters()))
+                        .concatMap(sampleFilter -> checkQueryPlan(indexDefinition.entityClass(), sampleFilter)))
+                .then()
+                .block();
+    }
+
+    /**
+     * Indexes are unique, as upserts and duplicate-tolerant inserts rely on them to keep one document per key.
+     * If the index cannot be created, e.g. because duplicates are already stored, startup fails. The error lists
+     * some of the duplicated keys, which have to be merged before the service is started again.
+     */
+    private Mono<String> ensureIndex(final IndexDefinition indexDefinition) {
+        final String collectionName = mongoTemplate.getCollectionName(indexDefinition.entityClass());
+        return mongoTemplate.getCollection(collectionName)
+                .flatMap(collection -> Mono.from(collection.createIndex(indexDefinition.keys(), new IndexOptions().unique(true))))
+                .doOnSuccess(indexName -> log.info("Index {} of {} collection ensured.", indexName, collectionName))
+                .onErrorResume(error -> findDuplicatedKeys(collectionName, indexDefinition.keyFields())
+                        .collectList()
+                        .flatMap(duplicatedKeys -> Mono.error(new IllegalStateException(
+                                UNIQUE_INDEX_ERROR_MSG.formatted(indexDefinition.keyFields(), collectionName, duplicatedKeys), error))));
+    }
+
+    private Flux<Document> findDuplicatedKeys(final String collectionName, final List<String> keyFields) {
+        final Document groupKey = new Document();
+        keyFields.forEach(keyField -> groupKey.append(keyField, "$" + keyField));
+        final List<Bson> duplicatesPipeline = List.of(
+                Aggregates.group(groupKey, Accumulators.sum(COUNT_FIELD, 1)),
+                Aggregates.match(Filters.gt(COUNT_FIELD, 1)),
+                Aggregates.limit(REPORTED_DUPLICATES_LIMIT));
+        return mongoTemplate.getCollection(collectionName)
+                .flatMapMany(collection -> collection.aggregate(duplicatesPipeline));
+    }
+
+    private Mono<Void> checkQueryPlan(final Class<?> entityClass, final Bson sampleFilter) {
+        final String collectionName = mongoTemplate.getCollectionName(entityClass);
+        return mongoTemplate.getCollection(collectionName)
+                .flatMap(collection -> Mono.from(collection.find(sampleFilter).explain()))
+                .filter(explanation -> containsCollectionScan(explanation.get("queryPlanner")))
+                .flatMap(__ -> {
+                    final String message = "Query %s on %s collection scans the whole collection".formatted(sampleFilter, collectionName);
+                    if (failOnCollectionScan) {
+                        return Mono.error(new IllegalStateException(message));
+                    }
+                    log.warn(message);
+                    return Mono.empty();
+                });
+    }
+
+    private static boolean containsCollectionScan(final Object planNode) {
+        if (planNode instanceof Document document) {
+            return COLLECTION_SCAN_STAGE.equals(document.get("stage"))
+                    || document.values().stream().anyMatch(MongoIndexesInitializer::containsCollectionScan);
+        }
+        if (planNode instanceof Collection<?> planNodes) {
+            return planNodes.stream().anyMatch(MongoIndexesInitializer::containsCollectionScan);
+        }
+        return false;
+    }
+
+    private record IndexDefinition(Class<?> entityClass, List<String> keyFields, List<Bson> sampleFilters) {
+
+        private Bson keys() {
+            return Indexes.ascending(keyFields);
+        }
+    }
+}
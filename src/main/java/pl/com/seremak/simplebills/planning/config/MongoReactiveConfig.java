@@ -1,12 +1,31 @@
 package pl.com.seremak.simplebills.planning.config;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.reactivestreams.client.MongoClient;
 import com.mongodb.reactivestreams.client.MongoClients;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.Decimal128;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.ReactiveMongoTransactionManager;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import java.math.BigDecimal;
+import java.util.List;
 
 @Slf4j
 @Configuration
@@ -20,13 +39,78 @@ public class MongoReactiveConfig {
 
 
     @Bean
-    public ReactiveMongoTemplate reactiveMongoTemplate() {
-        return new ReactiveMongoTemplate(mongoClient(), planningDatabase);
+    public ReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory(final MongoClient mongoClient) {
+        return new SimpleReactiveMongoDatabaseFactory(mongoClient, planningDatabase);
+    }
+
+    @Bean
+    public ReactiveMongoTemplate reactiveMongoTemplate(final ReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory) {
+        return new ReactiveMongoTemplate(reactiveMongoDatabaseFactory, mappingMongoConverter());
     }
 
+    /**
+     * Template operations within {@link TransactionalOperator#transactional} run in one Mongo transaction.
+     * Transactions require a replica set.
+     */
     @Bean
-    public MongoClient mongoClient() {
+    public ReactiveMongoTransactionManager reactiveMongoTransactionManager(final ReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory) {
+        return new ReactiveMongoTransactionManager(reactiveMongoDatabaseFactory);
+    }
+
+    @Bean
+    public TransactionalOperator transactionalOperator(final ReactiveMongoTransactionManager reactiveMongoTransactionManager) {
+        return TransactionalOperator.create(reactiveMongoTransactionManager);
+    }
+
+    /**
+     * Latency of every command is recorded in mongodb.driver.commands timer, tagged with command and collection.
+     */
+    @Bean
+    public MongoClient mongoClient(final SlowMongoCommandListener slowMongoCommandListener, final MeterRegistry meterRegistry) {
         log.info("Creating MongoDb client for URI: {}", planningDatabaseUri);
-        return MongoClients.create(planningDatabaseUri);
+        return MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(planningDatabaseUri))
+                .addCommandListener(slowMongoCommandListener)
+                .addCommandListener(new MongoMetricsCommandListener(meterRegistry))
+                .build());
+    }
+
+    /**
+     * Amounts are stored as Decimal128, so they can be incremented server-side with $inc.
+     * Legacy String values are still readable by the default String to BigDecimal converter.
+     */
+    @Bean
+    public MongoCustomConversions mongoCustomConversions() {
+        return new MongoCustomConversions(List.of(new BigDecimalToDecimal128Converter(), new Decimal128ToBigDecimalConverter()));
+    }
+
+    @Bean
+    public MappingMongoConverter mappingMongoConverter() {
+        final MongoCustomConversions conversions = mongoCustomConversions();
+        final MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        final MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    @WritingConverter
+    static class BigDecimalToDecimal128Converter implements Converter<BigDecimal, Decimal128> {
+
+        @Override
+        public Decimal128 convert(final BigDecimal source) {
+            return new Decimal128(source);
+        }
+    }
+
+    @ReadingConverter
+    static class Decimal128ToBigDecimalConverter implements Converter<Decimal128, BigDecimal> {
+
+        @Override
+        public BigDecimal convert(final Decimal128 source) {
+            return source.bigDecimalValue();
+        }
     }
-}
\ No newline at end of file
+}
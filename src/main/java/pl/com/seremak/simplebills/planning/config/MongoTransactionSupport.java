@@ -0,0 +1,72 @@
+package pl.com.seremak.simplebills.planning.config;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Transactions require a replica set or a sharded cluster. Whether the server supports them is checked lazily, on first
+ * use, with the isMaster command, which unlike hello is available on every supported server version. The result is
+ * cached once the check succeeds. When it fails, e.g. the server is unreachable, operations run without a transaction
+ * and the check is repeated on the next use. On a standalone server, e.g. a local or embedded one, operations run
+ * without a transaction, so they are not atomic.
+ */
+@Slf4j
+@Component
+public class MongoTransactionSupport {
+
+    private static final String ADMIN_DATABASE = "admin";
+    private static final String IS_MASTER_COMMAND = "isMaster";
+    private static final String SET_NAME_FIELD = "setName";
+    private static final String MSG_FIELD = "msg";
+    private static final String MONGOS_MSG = "isdbgrid";
+    private static final Duration IS_MASTER_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration NOT_CACHED = Duration.ZERO;
+    private static final Duration CACHED_FOREVER = Duration.ofMillis(Long.MAX_VALUE);
+
+    private final TransactionalOperator transactionalOperator;
+    private final Mono<Boolean> supported;
+
+    public MongoTransactionSupport(final TransactionalOperator transactionalOperator, final MongoClient mongoClient) {
+        this.transactionalOperator = transactionalOperator;
+        this.supported = checkTransactionSupport(mongoClient)
+                .cache(__ -> CACHED_FOREVER, __ -> NOT_CACHED, () -> NOT_CACHED)
+                .onErrorResume(error -> {
+                    log.warn("Could not check whether MongoDB server supports transactions, running without a transaction: {}",
+                            error.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    /**
+     * Change streams have the same requirement as transactions.
+     */
+    public Mono<Boolean> isSupported() {
+        return supported;
+    }
+
+    public <T> Mono<T> transactional(final Mono<T> operations) {
+        return supported.flatMap(isSupported -> isSupported ?
+                transactionalOperator.transactional(operations) :
+                operations);
+    }
+
+    private static Mono<Boolean> checkTransactionSupport(final MongoClient mongoClient) {
+        return Mono.from(mongoClient.getDatabase(ADMIN_DATABASE).runCommand(new Document(IS_MASTER_COMMAND, 1)))
+                .timeout(IS_MASTER_TIMEOUT)
+                .map(isMaster -> isMaster.containsKey(SET_NAME_FIELD) || MONGOS_MSG.equals(isMaster.getString(MSG_FIELD)))
+                .defaultIfEmpty(false)
+                .doOnNext(isSupported -> {
+                    if (isSupported) {
+                        log.info("MongoDB transactions are supported.");
+                    } else {
+                        log.warn("MongoDB server is standalone and does not support transactions. Changes and their outbox events are saved without a transaction.");
+                    }
+                });
+    }
+}
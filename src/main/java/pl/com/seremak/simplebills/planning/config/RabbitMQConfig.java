@@ -1,18 +1,31 @@
 package pl.com.seremak.simplebills.planning.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.rabbitmq.ChannelPool;
+import reactor.rabbitmq.ChannelPoolFactory;
+import reactor.rabbitmq.ChannelPoolOptions;
+import reactor.rabbitmq.RabbitFlux;
+import reactor.rabbitmq.Sender;
+import reactor.rabbitmq.SenderOptions;
 
 import static pl.com.seremak.simplebills.commons.constants.MessageQueue.*;
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.CATEGORY_CACHE_INVALIDATION_ROUTING_KEY;
 
 @Slf4j
 @EnableRabbit
@@ -20,6 +33,7 @@ import static pl.com.seremak.simplebills.commons.constants.MessageQueue.*;
 @RequiredArgsConstructor
 public class RabbitMQConfig {
 
+    private static final String REACTIVE_SENDER_CONNECTION_NAME = "planning-reactive-sender";
     private final CachingConnectionFactory cachingConnectionFactory;
     private final ObjectMapper objectMapper;
 
@@ -36,6 +50,84 @@ public class RabbitMQConfig {
         return new Jackson2JsonMessageConverter(objectMapper);
     }
 
+    /**
+     * Used in batch listener mode. A batch is released when batchSize messages are received
+     * or when no further message arrives within batchLingerMs. The listener acks the batch when it is posted.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchRabbitListenerContainerFactory(
+            @Value("${custom-properties.transaction-events.batch-size:100}") final int batchSize,
+            @Value("${custom-properties.transaction-events.batch-linger-ms:200}") final long batchLingerMs) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(cachingConnectionFactory);
+        factory.setMessageConverter(producerJackson2MessageConverter());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setPrefetchCount(batchSize);
+        factory.setReceiveTimeout(batchLingerMs);
+        return factory;
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory userCreationRabbitListenerContainerFactory(
+            @Value("${custom-properties.user-setup.batch-size:200}") final int batchSize,
+            @Value("${custom-properties.user-setup.batch-linger-ms:500}") final long batchLingerMs) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(cachingConnectionFactory);
+        factory.setMessageConverter(producerJackson2MessageConverter());
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setPrefetchCount(batchSize);
+        factory.setReceiveTimeout(batchLingerMs);
+        return factory;
+    }
+
+    /**
+     * Used in manual-ack listener mode. Listener returns a Mono and the message is acked only when it completes,
+     * so at most prefetch messages per consumer are being posted at the same time.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory manualAckRabbitListenerContainerFactory(
+            @Value("${custom-properties.transaction-events.prefetch:32}") final int prefetch,
+            @Value("${custom-properties.transaction-events.consumers:1}") final int consumers) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(cachingConnectionFactory);
+        factory.setMessageConverter(producerJackson2MessageConverter());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(prefetch);
+        factory.setConcurrentConsumers(consumers);
+        factory.setMaxConcurrentConsumers(consumers);
+        return factory;
+    }
+
+    /**
+     * Connection of the reactive sender. It uses connection settings of Spring AMQP.
+     */
+    @Bean
+    public Mono<Connection> reactiveSenderConnection() {
+        final ConnectionFactory connectionFactory = cachingConnectionFactory.getRabbitConnectionFactory();
+        return Mono.fromCallable(() -> connectionFactory.newConnection(REACTIVE_SENDER_CONNECTION_NAME))
+                .cache();
+    }
+
+    @Bean
+    public ChannelPool reactiveSenderChannelPool(final Mono<Connection> reactiveSenderConnection,
+                                                 @Value("${custom-properties.publisher.channel-pool-size:5}") final int channelPoolSize) {
+        return ChannelPoolFactory.createChannelPool(reactiveSenderConnection, new ChannelPoolOptions()
+                .maxCacheSize(channelPoolSize)
+                .subscriptionScheduler(Schedulers.boundedElastic()));
+    }
+
+    @Bean
+    public Sender reactiveSender(final Mono<Connection> reactiveSenderConnection) {
+        return RabbitFlux.createSender(new SenderOptions()
+                .connectionMono(reactiveSenderConnection)
+                .resourceManagementScheduler(Schedulers.boundedElastic()));
+    }
+
     /**
      * Required for executing administration functions against an AMQP Broker
      */
@@ -69,6 +161,15 @@ public class RabbitMQConfig {
         return new Queue(TRANSACTION_EVENT_ASSETS_MANAGEMENT_QUEUE, false);
     }
 
+    /**
+     * Exclusive queue of this replica. All replicas bind their queues with the same routing key,
+     * so each of them receives every category cache invalidation.
+     */
+    @Bean
+    public Queue categoryCacheInvalidationQueue() {
+        return new AnonymousQueue();
+    }
+
     @Bean
     Binding userCreationSimpleBillsBinding(final Queue userCreationSimpleBillsQueue,
                                            final DirectExchange exchange) {
@@ -104,5 +205,13 @@ public class RabbitMQConfig {
                 .to(exchange)
                 .with(TRANSACTION_EVENT_ASSETS_MANAGEMENT_QUEUE);
     }
-}
 
+    @Bean
+    Binding categoryCacheInvalidationBinding(final Queue categoryCacheInvalidationQueue,
+                                             final DirectExchange exchange) {
+        return BindingBuilder
+                .bind(categoryCacheInvalidationQueue)
+                .to(exchange)
+                .with(CATEGORY_CACHE_INVALIDATION_ROUTING_KEY);
+    }
+}
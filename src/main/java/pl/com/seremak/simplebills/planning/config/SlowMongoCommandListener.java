@@ -0,0 +1,107 @@
+package pl.com.seremak.simplebills.planning.config;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Records Mongo commands slower than the threshold. The filter shape, which is the filter with values replaced by "?",
+ * is logged with the command, so slow queries can be matched with indexes without logging user data.
+ */
+@Slf4j
+@Component
+public class SlowMongoCommandListener implements CommandListener {
+
+    private static final String SHAPE_PLACEHOLDER = "?";
+    private static final Set<String> FILTER_FIELDS = Set.of("filter", "query", "q", "pipeline", "updates", "deletes");
+    private final MeterRegistry meterRegistry;
+    private final Duration threshold;
+    private final Map<Integer, StartedCommand> startedCommands = new ConcurrentHashMap<>();
+
+    public SlowMongoCommandListener(final MeterRegistry meterRegistry,
+                                    @Value("${custom-properties.mongo.slow-command-threshold:100ms}") final Duration threshold) {
+        this.meterRegistry = meterRegistry;
+        this.threshold = threshold;
+    }
+
+    /**
+     * The command document is valid only during the event, so its shape is prepared here.
+     */
+    @Override
+    public void commandStarted(final CommandStartedEvent event) {
+        final BsonValue collectionName = event.getCommand().get(event.getCommandName());
+        startedCommands.put(event.getRequestId(), new StartedCommand(
+                collectionName instanceof BsonString ? collectionName.asString().getValue() : event.getDatabaseName(),
+                prepareFilterShape(event.getCommand())));
+    }
+
+    @Override
+    public void commandSucceeded(final CommandSucceededEvent event) {
+        recordIfSlow(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), "success");
+    }
+
+    @Override
+    public void commandFailed(final CommandFailedEvent event) {
+        recordIfSlow(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), "failure");
+    }
+
+    private void recordIfSlow(final int requestId, final String commandName, final long elapsedNanos, final String outcome) {
+        final StartedCommand startedCommand = startedCommands.remove(requestId);
+        if (isNull(startedCommand) || elapsedNanos < threshold.toNanos()) {
+            return;
+        }
+        Timer.builder("planning.mongo.slow.commands")
+                .tag("command", commandName)
+                .tag("collection", startedCommand.collectionName())
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+        log.warn("Slow Mongo command {} on {} took {} ms. Filter shape: {}", commandName, startedCommand.collectionName(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), startedCommand.filterShape());
+    }
+
+    private static BsonDocument prepareFilterShape(final BsonDocument command) {
+        final BsonDocument filterShape = new BsonDocument();
+        command.forEach((field, value) -> {
+            if (FILTER_FIELDS.contains(field)) {
+                filterShape.put(field, toShape(value));
+            }
+        });
+        return filterShape;
+    }
+
+    private static BsonValue toShape(final BsonValue value) {
+        if (value.isDocument()) {
+            final BsonDocument shape = new BsonDocument();
+            value.asDocument().forEach((field, fieldValue) -> shape.put(field, toShape(fieldValue)));
+            return shape;
+        }
+        if (value.isArray()) {
+            final BsonArray shape = new BsonArray();
+            value.asArray().forEach(element -> shape.add(toShape(element)));
+            return shape;
+        }
+        return new BsonString(SHAPE_PLACEHOLDER);
+    }
+
+    private record StartedCommand(String collectionName, BsonDocument filterShape) {
+    }
+}
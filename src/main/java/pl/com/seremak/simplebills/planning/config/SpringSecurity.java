@@ -19,6 +19,9 @@ import java.util.List;
 @EnableWebFluxSecurity
 public class SpringSecurity {
 
+    private static final String[] HEALTH_ENDPOINT_PATHS = {"/actuator/health", "/actuator/health/**"};
+    private static final String ACTUATOR_PATHS = "/actuator/**";
+
     @Value("${custom-properties.simple-bills-gui}")
     private String simpleBillsGuiApp;
 
@@ -29,6 +32,8 @@ public class SpringSecurity {
                 .csrf()
                 .disable()
                 .authorizeExchange()
+                .pathMatchers(HEALTH_ENDPOINT_PATHS).permitAll()
+                .pathMatchers(ACTUATOR_PATHS).authenticated()
                 .anyExchange().permitAll()
                 .and()
                 .oauth2ResourceServer().bearerTokenConverter(bearerTokenConverter())
@@ -0,0 +1,51 @@
+package pl.com.seremak.simplebills.planning.databasePrePopulation;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.result.UpdateResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Amounts were stored as Strings before Decimal128 conversion was configured. $inc cannot be applied to String values,
+ * so remaining ones are converted in place on startup. Already converted documents are not matched.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DecimalAmountsMigration {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @EventListener
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        log.info("Looking for amounts stored as String...");
+        Flux.concat(
+                        convertToDecimal(Balance.class, "balance"),
+                        convertToDecimal(CategoryUsageLimit.class, "usage"),
+                        convertToDecimal(CategoryUsageLimit.class, "limit"),
+                        convertToDecimal(Category.class, "limit"))
+                .reduce(0L, Long::sum)
+                .doOnSuccess(convertedCount -> log.info("{} amounts converted to Decimal128", convertedCount))
+                .block();
+    }
+
+    private Mono<Long> convertToDecimal(final Class<?> entityClass, final String field) {
+        final Document conversion = new Document("$set", new Document(field, new Document("$toDecimal", "$" + field)));
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(entityClass))
+                .flatMap(collection -> Mono.from(collection.updateMany(Filters.type(field, BsonType.STRING), List.of(conversion))))
+                .map(UpdateResult::getModifiedCount);
+    }
+}
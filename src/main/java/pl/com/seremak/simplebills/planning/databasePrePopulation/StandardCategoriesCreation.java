@@ -8,6 +8,7 @@ import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import pl.com.seremak.simplebills.planning.service.CategoryService;
+import pl.com.seremak.simplebills.planning.service.StandardCategoriesTemplate;
 import pl.com.seremak.simplebills.planning.utils.BillPlanConstants;
 
 import java.util.List;
@@ -19,6 +20,7 @@ import java.util.List;
 public class StandardCategoriesCreation {
 
     private final CategoryService categoryService;
+    private final StandardCategoriesTemplate standardCategoriesTemplate;
 
     @Setter
     private List<String> incomeCategories;
@@ -39,6 +41,7 @@ public class StandardCategoriesCreation {
                 .flatMapMany(categoryService::createAllCategories)
                 .collectList()
                 .doOnSuccess(CategoryService::logMissingCategoryAddingSummary)
+                .then(standardCategoriesTemplate.refresh())
                 .block();
     }
 }
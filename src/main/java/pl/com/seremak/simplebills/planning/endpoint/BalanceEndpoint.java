@@ -3,10 +3,12 @@ package pl.com.seremak.simplebills.planning.endpoint;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import pl.com.seremak.simplebills.commons.model.Balance;
@@ -15,6 +17,7 @@ import pl.com.seremak.simplebills.planning.service.BalanceService;
 import reactor.core.publisher.Mono;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareConditionalResponse;
 
 @Slf4j
 @CrossOrigin
@@ -27,10 +30,11 @@ public class BalanceEndpoint {
 
 
     @GetMapping(produces = APPLICATION_JSON_VALUE)
-    public Mono<ResponseEntity<Balance>> findBalance(final JwtAuthenticationToken principal) {
+    public Mono<ResponseEntity<Balance>> findBalance(final JwtAuthenticationToken principal,
+                                                     @RequestHeader final HttpHeaders headers) {
         final String username = JwtExtractionHelper.extractUsername(principal);
-        return balanceService.findBalance(username)
-                .doOnSuccess(balance -> log.info("Balance for username={} found.", balance.getUsername()))
-                .map(ResponseEntity::ok);
+        return balanceService.findBalanceWithETag(username)
+                .doOnSuccess(balance -> log.info("Balance for username={} found.", username))
+                .map(balance -> prepareConditionalResponse(headers, balance));
     }
 }
@@ -4,6 +4,7 @@ package pl.com.seremak.simplebills.planning.endpoint;
 import com.mongodb.lang.Nullable;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.*;
@@ -12,12 +13,15 @@ import pl.com.seremak.simplebills.commons.model.Category;
 import pl.com.seremak.simplebills.commons.utils.EndpointUtils;
 import pl.com.seremak.simplebills.commons.utils.JwtExtractionHelper;
 import pl.com.seremak.simplebills.planning.service.CategoryService;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.validation.Valid;
 import java.util.List;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareConditionalResponse;
 
 @Slf4j
 @CrossOrigin
@@ -40,22 +44,44 @@ public class CategoryEndpoint {
     }
 
     @GetMapping(produces = APPLICATION_JSON_VALUE)
-    public Mono<ResponseEntity<List<Category>>> findAllCategories(final JwtAuthenticationToken principal) {
+    public Mono<ResponseEntity<List<Category>>> findAllCategories(final JwtAuthenticationToken principal,
+                                                                 @RequestHeader final HttpHeaders headers) {
         final String username = JwtExtractionHelper.extractUsername(principal);
         log.info("Finding categories for user with name={}", username);
-        return categoryService.findAllCategories(username)
-                .doOnSuccess(categories -> log.info("{} categories for username={} found.", categories.size(), username))
-                .map(ResponseEntity::ok);
+        return categoryService.findAllCategoriesWithETag(username)
+                .doOnSuccess(userCategories -> log.info("{} categories for username={} found.", userCategories.categories().size(), username))
+                .map(userCategories -> prepareConditionalResponse(headers, userCategories.eTag(), userCategories.categories()));
+    }
+
+    @GetMapping(produces = APPLICATION_NDJSON_VALUE)
+    public Flux<Category> streamAllCategories(final JwtAuthenticationToken principal) {
+        final String username = JwtExtractionHelper.extractUsername(principal);
+        log.info("Streaming categories for user with name={}", username);
+        return categoryService.streamAllCategories(username);
+    }
+
+    /**
+     * Lightweight listing with keyset pagination. The next page is requested with the name of the last category
+     * passed as after.
+     */
+    @GetMapping(params = "limit", produces = {APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    public Flux<Category> findCategoriesPage(final JwtAuthenticationToken principal,
+                                             @RequestParam final int limit,
+                                             @Nullable @RequestParam(required = false) final String after) {
+        final String username = JwtExtractionHelper.extractUsername(principal);
+        log.info("Finding page of {} categories after={} for user with name={}", limit, after, username);
+        return categoryService.findCategoriesPage(username, after, limit);
     }
 
     @GetMapping(value = "{categoryName}", produces = APPLICATION_JSON_VALUE)
     public Mono<ResponseEntity<Category>> findCategoryByName(final JwtAuthenticationToken principal,
+                                                             @RequestHeader final HttpHeaders headers,
                                                              @PathVariable final String categoryName) {
         final String username = JwtExtractionHelper.extractUsername(principal);
         log.info("Looking for category with name={} and username={}", categoryName, username);
-        return categoryService.findCategory(username, categoryName)
-                .doOnSuccess(category -> log.info("Category with name={} for username={} successfully found.", category.getName(), category.getUsername()))
-                .map(ResponseEntity::ok);
+        return categoryService.findCategoryWithETag(username, categoryName)
+                .doOnSuccess(category -> log.info("Category with name={} for username={} successfully found.", categoryName, username))
+                .map(category -> prepareConditionalResponse(headers, category));
     }
 
     @PatchMapping(value = "{categoryName}", produces = APPLICATION_JSON_VALUE)
@@ -4,17 +4,22 @@ package pl.com.seremak.simplebills.planning.endpoint;
 import com.mongodb.lang.Nullable;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.*;
 import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
 import pl.com.seremak.simplebills.commons.utils.JwtExtractionHelper;
 import pl.com.seremak.simplebills.planning.service.CategoryUsageLimitService;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.YearMonth;
 import java.util.List;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareConditionalResponse;
 
 @Slf4j
 @CrossOrigin
@@ -28,12 +33,28 @@ public class CategoryUsageLimitEndpoint {
     @GetMapping(produces = APPLICATION_JSON_VALUE)
     public Mono<ResponseEntity<List<CategoryUsageLimit>>> findAllCategoryUsageLimits(
             final JwtAuthenticationToken principal,
+            @RequestHeader final HttpHeaders headers,
             @Nullable @RequestParam final String yearMonth,
             @RequestParam(value = "total", required = false, defaultValue = "false") final boolean total) {
 
         final String username = JwtExtractionHelper.extractUsername(principal);
         return categoryUsageLimitService.findAllCategoryUsageLimits(username, yearMonth, total)
-                .doOnSuccess(categoryUsageLimits -> log.info("A list of {} usage of limits for all categories for username={} found.", categoryUsageLimits.size(), username))
-                .map(ResponseEntity::ok);
+                .doOnSuccess(categoryUsageLimits -> log.info("A list of {} usage of limits for all categories for username={} found.", categoryUsageLimits.body().size(), username))
+                .map(categoryUsageLimits -> prepareConditionalResponse(headers, categoryUsageLimits));
+    }
+
+    /**
+     * Streams usages of months between from and to, inclusive, each month followed by its total.
+     */
+    @GetMapping(value = "range", produces = APPLICATION_NDJSON_VALUE)
+    public Flux<CategoryUsageLimit> findCategoryUsageLimitsInRange(
+            final JwtAuthenticationToken principal,
+            @RequestParam final YearMonth from,
+            @RequestParam final YearMonth to,
+            @Nullable @RequestParam(required = false) final String categoryName) {
+
+        final String username = JwtExtractionHelper.extractUsername(principal);
+        log.info("Streaming usage of limits from={} to={} for username={}", from, to, username);
+        return categoryUsageLimitService.findCategoryUsageLimitsInRange(username, from, to, categoryName);
     }
 }
@@ -0,0 +1,38 @@
+package pl.com.seremak.simplebills.planning.endpoint;
+
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import pl.com.seremak.simplebills.commons.utils.JwtExtractionHelper;
+import pl.com.seremak.simplebills.planning.service.LiveUpdatesService;
+import reactor.core.publisher.Flux;
+
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM_VALUE;
+
+@Slf4j
+@CrossOrigin
+@RestController
+@RequestMapping("/live-updates")
+@RequiredArgsConstructor
+public class LiveUpdatesEndpoint {
+
+    private final LiveUpdatesService liveUpdatesService;
+
+
+    /**
+     * Pushes balance and category-usage-limit events. EventSource can pass the token as access_token query parameter.
+     */
+    @GetMapping(produces = TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> subscribeLiveUpdates(final JwtAuthenticationToken principal) {
+        final String username = JwtExtractionHelper.extractUsername(principal);
+        log.info("Live updates subscription for username={} opened.", username);
+        return liveUpdatesService.subscribe(username)
+                .doFinally(signal -> log.info("Live updates subscription for username={} closed.", username));
+    }
+}
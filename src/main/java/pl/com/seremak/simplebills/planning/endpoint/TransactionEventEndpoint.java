@@ -14,6 +14,7 @@ import reactor.core.publisher.Mono;
 
 import javax.validation.Valid;
 
+import static java.util.Objects.nonNull;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 
@@ -24,16 +25,26 @@ import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 @RequiredArgsConstructor
 public class TransactionEventEndpoint {
 
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     private final TransactionPostingService transactionPostingService;
 
 
     @PostMapping(produces = TEXT_PLAIN_VALUE, consumes = APPLICATION_JSON_VALUE)
     public Mono<ResponseEntity<Balance>> postTransaction(final JwtAuthenticationToken principal,
+                                                         @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) final String idempotencyKey,
                                                          @Valid @RequestBody final TransactionEventDto transactionEventDto) {
         final String username = JwtExtractionHelper.extractUsername(principal);
         JwtExtractionHelper.validateUsername(username, transactionEventDto.getUsername());
         log.info("Transaction request for username={} and categoryName={} received.", username, transactionEventDto.getCategoryName());
-        return transactionPostingService.postTransaction(transactionEventDto)
+        return transactionPostingService.postTransaction(prepareTransactionId(username, idempotencyKey), transactionEventDto)
                 .map(ResponseEntity::ok);
     }
+
+    /**
+     * Idempotency key is chosen by the client, so it is scoped to the user.
+     */
+    private static String prepareTransactionId(final String username, final String idempotencyKey) {
+        return nonNull(idempotencyKey) ? "%s:%s".formatted(username, idempotencyKey) : null;
+    }
 }
@@ -0,0 +1,44 @@
+package pl.com.seremak.simplebills.planning.endpoint;
+
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import pl.com.seremak.simplebills.commons.utils.JwtExtractionHelper;
+import pl.com.seremak.simplebills.planning.service.TransactionReplayService;
+import pl.com.seremak.simplebills.planning.service.TransactionReplayService.ReplayReport;
+import reactor.core.publisher.Mono;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.MASTER_USER;
+
+@Slf4j
+@CrossOrigin
+@RestController
+@RequestMapping("/transactionsJournal")
+@RequiredArgsConstructor
+public class TransactionJournalEndpoint {
+
+    private final TransactionReplayService transactionReplayService;
+
+
+    /**
+     * Replays the journal of all users, so only the master user may run it. Without dryRun=false nothing is written.
+     * Writing pauses posting for the time of the replay and is refused unless the journal holds the whole history.
+     */
+    @PostMapping(value = "/replay", produces = APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ReplayReport>> replay(final JwtAuthenticationToken principal,
+                                                     @RequestParam(defaultValue = "true") final boolean dryRun) {
+        final String username = JwtExtractionHelper.extractUsername(principal);
+        JwtExtractionHelper.validateUsername(username, MASTER_USER);
+        log.info("Transaction journal replay with dryRun={} requested.", dryRun);
+        return transactionReplayService.replay(dryRun)
+                .map(ResponseEntity::ok);
+    }
+}
@@ -3,12 +3,21 @@ package pl.com.seremak.simplebills.planning.messageQueue;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.messaging.Message;
 import org.springframework.stereotype.Component;
 import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
-import pl.com.seremak.simplebills.planning.service.TransactionPostingService;
+import pl.com.seremak.simplebills.commons.exceptions.DuplicatedElementsException;
+import pl.com.seremak.simplebills.commons.exceptions.NotFoundException;
+import pl.com.seremak.simplebills.planning.service.PartitionedTransactionExecutor;
+import pl.com.seremak.simplebills.planning.service.TransactionSpool;
+import pl.com.seremak.simplebills.planning.service.UserCategoriesCache;
 import pl.com.seremak.simplebills.planning.service.UserSetupService;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
 
 import static pl.com.seremak.simplebills.commons.constants.MessageQueue.TRANSACTION_EVENT_BILLS_PLANING_QUEUE;
 import static pl.com.seremak.simplebills.commons.constants.MessageQueue.USER_CREATION_SIMPLE_BILLS_QUEUE;
@@ -20,20 +29,68 @@ import static pl.com.seremak.simplebills.commons.constants.MessageQueue.USER_CRE
 public class MessageListener {
 
     private final UserSetupService userSetupService;
-    private final TransactionPostingService transactionPostingService;
+    private final PartitionedTransactionExecutor partitionedTransactionExecutor;
+    private final TransactionSpool transactionSpool;
+    private final UserCategoriesCache userCategoriesCache;
+    private final RabbitConsumerMetrics rabbitConsumerMetrics;
 
-    @RabbitListener(queues = USER_CREATION_SIMPLE_BILLS_QUEUE)
-    public void receiveUserCreationMessage(final String username) {
-        log.info("User creation message received. Username={}", username);
-        userSetupService.setupUser(username);
+    /**
+     * Users are set up in batches. The listener thread waits once per batch, so messages are acked after users are set up.
+     */
+    @RabbitListener(queues = USER_CREATION_SIMPLE_BILLS_QUEUE, containerFactory = "userCreationRabbitListenerContainerFactory")
+    public void receiveUserCreationMessages(final List<String> usernames) {
+        log.info("User creation messages received. Usernames={}", usernames);
+        rabbitConsumerMetrics.recordReceived(USER_CREATION_SIMPLE_BILLS_QUEUE, usernames.size());
+        userSetupService.setupUsers(usernames)
+                .transform(rabbitConsumerMetrics.timedProcessing(USER_CREATION_SIMPLE_BILLS_QUEUE))
+                .block();
     }
 
-    @RabbitListener(queues = TRANSACTION_EVENT_BILLS_PLANING_QUEUE)
+    /**
+     * Transactions are posted asynchronously, so they go through the spool, which stores them on disk when too many
+     * postings are in flight.
+     */
+    @RabbitListener(queues = TRANSACTION_EVENT_BILLS_PLANING_QUEUE,
+            autoStartup = "#{'${custom-properties.transaction-events.listener-mode:single}' == 'single'}")
     public void receiveTransactionMessage(final Message<TransactionEventDto> transactionMessage) {
         final TransactionEventDto transaction = transactionMessage.getPayload();
         log.info("Transaction message received: username={}, categoryName={}", transaction.getUsername(), transaction.getCategoryName());
-        transactionPostingService.postTransaction(transaction)
-                .doOnSuccess(updatedBalance -> log.info("Balance for username={} updated.", updatedBalance.getUsername()))
+        rabbitConsumerMetrics.recordReceived(TRANSACTION_EVENT_BILLS_PLANING_QUEUE, transactionMessage);
+        transactionSpool.submit(extractMessageId(transactionMessage), transaction)
+                .transform(rabbitConsumerMetrics.timedProcessing(TRANSACTION_EVENT_BILLS_PLANING_QUEUE))
+                .doOnNext(updatedBalance -> log.info("Balance for username={} updated.", updatedBalance.getUsername()))
+                .doOnError(error -> log.error("Transaction posting for username={} failed: {}", transaction.getUsername(), error.getMessage()))
                 .subscribe();
     }
+
+    /**
+     * Message is acked when returned Mono completes and nacked when it fails. Failures that will not succeed
+     * on redelivery are rejected without requeue.
+     */
+    @RabbitListener(queues = TRANSACTION_EVENT_BILLS_PLANING_QUEUE,
+            containerFactory = "manualAckRabbitListenerContainerFactory",
+            autoStartup = "#{'${custom-properties.transaction-events.listener-mode:single}' == 'manual-ack'}")
+    public Mono<Void> receiveTransactionMessageWithManualAck(final Message<TransactionEventDto> transactionMessage) {
+        final TransactionEventDto transaction = transactionMessage.getPayload();
+        log.info("Transaction message received: username={}, categoryName={}", transaction.getUsername(), transaction.getCategoryName());
+        rabbitConsumerMetrics.recordReceived(TRANSACTION_EVENT_BILLS_PLANING_QUEUE, transactionMessage);
+        return partitionedTransactionExecutor.submit(extractMessageId(transactionMessage), transaction)
+                .transform(rabbitConsumerMetrics.timedProcessing(TRANSACTION_EVENT_BILLS_PLANING_QUEUE))
+                .doOnSuccess(updatedBalance -> log.info("Balance for username={} updated.", updatedBalance.getUsername()))
+                .onErrorMap(error -> error instanceof NotFoundException || error instanceof DuplicatedElementsException,
+                        AmqpRejectAndDontRequeueException::new)
+                .then();
+    }
+
+    @RabbitListener(queues = "#{categoryCacheInvalidationQueue.name}")
+    public void receiveCategoryCacheInvalidationMessage(final String username) {
+        userCategoriesCache.invalidateLocally(username);
+    }
+
+    /**
+     * Message id is assigned by the producer and kept on redelivery, so it identifies the transaction for deduplication.
+     */
+    private static String extractMessageId(final Message<?> message) {
+        return message.getHeaders().get(AmqpHeaders.MESSAGE_ID, String.class);
+    }
 }
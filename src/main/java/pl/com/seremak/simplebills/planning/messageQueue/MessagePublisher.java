@@ -1,24 +1,135 @@
 package pl.com.seremak.simplebills.planning.messageQueue;
 
-import lombok.RequiredArgsConstructor;
+import com.rabbitmq.client.AMQP;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import pl.com.seremak.simplebills.commons.dto.queue.CategoryEventDto;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.Sinks;
+import reactor.rabbitmq.ChannelPool;
+import reactor.rabbitmq.CorrelableOutboundMessage;
+import reactor.rabbitmq.OutboundMessageResult;
+import reactor.rabbitmq.SendOptions;
+import reactor.rabbitmq.Sender;
+import reactor.util.concurrent.Queues;
 
-import static pl.com.seremak.simplebills.commons.constants.MessageQueue.CATEGORY_EVENT_SIMPLE_BILLS_QUEUE;
-import static pl.com.seremak.simplebills.commons.constants.MessageQueue.SIMPLE_BILLS_EXCHANGE;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
 
+import static pl.com.seremak.simplebills.commons.constants.MessageQueue.SIMPLE_BILLS_EXCHANGE;
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.CATEGORY_CACHE_INVALIDATION_ROUTING_KEY;
 
+/**
+ * Non-blocking publisher with publisher confirms. Messages sent within the batch linger are coalesced and published
+ * as one batch over a pooled channel; the sender correlates confirms with messages. Messages are converted
+ * with the same converter as RabbitTemplate, so consumers receive the same payload and headers. Batches waiting for
+ * a publishing slot are held in a bounded buffer; when it is full, the newest batch is rejected, so the batching
+ * operator is never left without demand and the pipeline is not terminated by an overflow. Messages are published
+ * as mandatory, so a message the broker cannot route to any queue is returned and its confirmation fails, instead of
+ * being acked and silently dropped.
+ */
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class MessagePublisher {
 
-    private final RabbitTemplate rabbitTemplate;
+    private final Jackson2JsonMessageConverter messageConverter;
+    private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+    private final Sinks.Many<CorrelableOutboundMessage<MonoSink<Void>>> pendingMessages;
+    private final Duration confirmTimeout;
+    private final Disposable publishing;
+
+    public MessagePublisher(final Sender reactiveSender,
+                            final ChannelPool reactiveSenderChannelPool,
+                            final Jackson2JsonMessageConverter producerJackson2MessageConverter,
+                            @Value("${custom-properties.publisher.batch-size:50}") final int batchSize,
+                            @Value("${custom-properties.publisher.batch-linger:10ms}") final Duration batchLinger,
+                            @Value("${custom-properties.publisher.max-in-flight-batches:4}") final int maxInFlightBatches,
+                            @Value("${custom-properties.publisher.max-pending-batches:100}") final int maxPendingBatches,
+                            @Value("${custom-properties.publisher.confirm-timeout:5s}") final Duration confirmTimeout) {
+        this.messageConverter = producerJackson2MessageConverter;
+        this.confirmTimeout = confirmTimeout;
+        this.pendingMessages = Sinks.many().unicast().onBackpressureBuffer(
+                Queues.<CorrelableOutboundMessage<MonoSink<Void>>>get(batchSize * maxPendingBatches).get());
+        final SendOptions sendOptions = new SendOptions()
+                .channelPool(reactiveSenderChannelPool)
+                .trackReturned(true);
+        this.publishing = pendingMessages.asFlux()
+                .bufferTimeout(batchSize, batchLinger)
+                .onBackpressureBuffer(maxPendingBatches, MessagePublisher::rejectBatch, BufferOverflowStrategy.DROP_LATEST)
+                .flatMap(batch -> publishBatch(reactiveSender, sendOptions, batch), maxInFlightBatches)
+                .subscribe(__ -> {}, error -> log.error("Message publishing stopped: {}", error.getMessage()));
+    }
+
+    @PreDestroy
+    public void stopPublishing() {
+        publishing.dispose();
+    }
+
+    /**
+     * Completes when the broker confirms the message and fails if it is nacked or not confirmed within the timeout.
+     */
+    public Mono<Void> sendConfirmed(final String exchange, final String routingKey, final Object message, final Duration confirmTimeout) {
+        return Mono.<Void>create(confirmation -> enqueue(exchange, routingKey, message, confirmation))
+                .timeout(confirmTimeout)
+                .doOnSuccess(__ -> log.info("Message sent: routingKey={}, message={}", routingKey, message));
+    }
+
+    public void sendCategoryCacheInvalidationMessage(final String username) {
+        sendConfirmed(SIMPLE_BILLS_EXCHANGE, CATEGORY_CACHE_INVALIDATION_ROUTING_KEY, username, confirmTimeout)
+                .subscribe(__ -> {}, error -> log.error("Category cache invalidation for username={} not sent: {}", username, error.getMessage()));
+    }
+
+    private void enqueue(final String exchange, final String routingKey, final Object message, final MonoSink<Void> confirmation) {
+        final Message convertedMessage = messageConverter.toMessage(message, new MessageProperties());
+        final AMQP.BasicProperties properties =
+                messagePropertiesConverter.fromMessageProperties(convertedMessage.getMessageProperties(), StandardCharsets.UTF_8.name());
+        final Sinks.EmitResult emitResult;
+        synchronized (pendingMessages) {
+            emitResult = pendingMessages.tryEmitNext(
+                    new CorrelableOutboundMessage<>(exchange, routingKey, properties, convertedMessage.getBody(), confirmation));
+        }
+        if (emitResult.isFailure()) {
+            confirmation.error(new AmqpException("Message to routingKey=%s not enqueued: %s".formatted(routingKey, emitResult)));
+        }
+    }
+
+    private static Mono<Void> publishBatch(final Sender reactiveSender,
+                                           final SendOptions sendOptions,
+                                           final List<CorrelableOutboundMessage<MonoSink<Void>>> batch) {
+        return Flux.defer(() -> reactiveSender.sendWithTypedPublishConfirms(Flux.fromIterable(batch), sendOptions))
+                .doOnNext(MessagePublisher::completeConfirmation)
+                .onErrorResume(error -> {
+                    log.error("Batch of {} messages not published: {}", batch.size(), error.getMessage());
+                    batch.forEach(message -> message.getCorrelationMetadata().error(error));
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static void rejectBatch(final List<CorrelableOutboundMessage<MonoSink<Void>>> batch) {
+        log.error("Batch of {} messages rejected, too many batches are waiting for publishing.", batch.size());
+        batch.forEach(message -> message.getCorrelationMetadata()
+                .error(new AmqpException("Message to routingKey=%s rejected, publisher is overloaded".formatted(message.getRoutingKey()))));
+    }
 
-    public void sendCategoryEventMessage(final CategoryEventDto categoryEventDto) {
-        rabbitTemplate.convertAndSend(SIMPLE_BILLS_EXCHANGE, CATEGORY_EVENT_SIMPLE_BILLS_QUEUE, categoryEventDto);
-        log.info("Message sent: queue={}, message={}", CATEGORY_EVENT_SIMPLE_BILLS_QUEUE, categoryEventDto);
+    private static void completeConfirmation(final OutboundMessageResult<CorrelableOutboundMessage<MonoSink<Void>>> result) {
+        final CorrelableOutboundMessage<MonoSink<Void>> message = result.getOutboundMessage();
+        if (result.isAck() && !result.isReturned()) {
+            message.getCorrelationMetadata().success();
+        } else {
+            message.getCorrelationMetadata().error(new AmqpException("Message to routingKey=%s not confirmed".formatted(message.getRoutingKey())));
+        }
     }
 }
@@ -0,0 +1,42 @@
+package pl.com.seremak.simplebills.planning.messageQueue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.RequiredArgsConstructor;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Function;
+
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedMono;
+
+/**
+ * Consumer metrics tagged with the queue. Rates of received and redelivered counters give messages per second.
+ * Processing time is measured until the message is processed, also when it is processed asynchronously,
+ * which the timer of the listener container does not cover.
+ */
+@Component
+@RequiredArgsConstructor
+public class RabbitConsumerMetrics {
+
+    private static final String QUEUE_TAG = "queue";
+    private final MeterRegistry meterRegistry;
+
+
+    public void recordReceived(final String queue, final Message<?> message) {
+        recordReceived(queue, 1);
+        if (Boolean.TRUE.equals(message.getHeaders().get(AmqpHeaders.REDELIVERED, Boolean.class))) {
+            meterRegistry.counter("planning.rabbit.messages.redelivered", QUEUE_TAG, queue).increment();
+        }
+    }
+
+    public void recordReceived(final String queue, final int messagesCount) {
+        meterRegistry.counter("planning.rabbit.messages.received", QUEUE_TAG, queue).increment(messagesCount);
+    }
+
+    public <T> Function<Mono<T>, Mono<T>> timedProcessing(final String queue) {
+        return timedMono(meterRegistry, "planning.rabbit.processing", Tags.of(QUEUE_TAG, queue));
+    }
+}
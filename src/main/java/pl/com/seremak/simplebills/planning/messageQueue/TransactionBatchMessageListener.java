@@ -0,0 +1,86 @@
+package pl.com.seremak.simplebills.planning.messageQueue;
+
+
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.exceptions.DuplicatedElementsException;
+import pl.com.seremak.simplebills.commons.exceptions.NotFoundException;
+import pl.com.seremak.simplebills.planning.service.IdentifiedTransaction;
+import pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService;
+
+import java.io.IOException;
+import java.util.List;
+
+import static pl.com.seremak.simplebills.commons.constants.MessageQueue.TRANSACTION_EVENT_BILLS_PLANING_QUEUE;
+
+
+/**
+ * Consumes transaction events in batches. Messages are acked manually when the batch is persisted, so the container
+ * thread does not wait for the bulk writes, and the prefetch count bounds the number of batches being posted.
+ * Message ids are used for deduplication, so a requeued batch does not apply the same transaction twice.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "custom-properties.transaction-events.listener-mode", havingValue = "batch")
+public class TransactionBatchMessageListener {
+
+    private final TransactionBatchPostingService transactionBatchPostingService;
+    private final RabbitConsumerMetrics rabbitConsumerMetrics;
+
+    @RabbitListener(queues = TRANSACTION_EVENT_BILLS_PLANING_QUEUE, containerFactory = "batchRabbitListenerContainerFactory")
+    public void receiveTransactionMessages(final List<Message<TransactionEventDto>> transactionMessages, final Channel channel) {
+        log.info("Batch of {} transaction messages received.", transactionMessages.size());
+        transactionMessages.forEach(transactionMessage ->
+                rabbitConsumerMetrics.recordReceived(TRANSACTION_EVENT_BILLS_PLANING_QUEUE, transactionMessage));
+        final List<IdentifiedTransaction> transactions = transactionMessages.stream()
+                .map(transactionMessage -> new IdentifiedTransaction(
+                        transactionMessage.getHeaders().get(AmqpHeaders.MESSAGE_ID, String.class),
+                        transactionMessage.getPayload()))
+                .toList();
+        transactionBatchPostingService.postTransactions(transactions)
+                .transform(rabbitConsumerMetrics.timedProcessing(TRANSACTION_EVENT_BILLS_PLANING_QUEUE))
+                .subscribe(__ -> {},
+                        error -> nackAll(channel, transactionMessages, error),
+                        () -> ackAll(channel, transactionMessages));
+    }
+
+    /**
+     * Messages are acked one by one, as another batch of the same channel may be in flight.
+     */
+    private static void ackAll(final Channel channel, final List<Message<TransactionEventDto>> transactionMessages) {
+        try {
+            for (final Message<TransactionEventDto> transactionMessage : transactionMessages) {
+                channel.basicAck(deliveryTagOf(transactionMessage), false);
+            }
+        } catch (final IOException e) {
+            log.error("Batch of {} transaction messages not acked: {}", transactionMessages.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Failures that will not succeed on redelivery are rejected without requeue.
+     */
+    private static void nackAll(final Channel channel, final List<Message<TransactionEventDto>> transactionMessages, final Throwable error) {
+        final boolean requeue = !(error instanceof NotFoundException || error instanceof DuplicatedElementsException);
+        log.error("Batch of {} transactions not posted, requeue={}: {}", transactionMessages.size(), requeue, error.getMessage());
+        try {
+            for (final Message<TransactionEventDto> transactionMessage : transactionMessages) {
+                channel.basicNack(deliveryTagOf(transactionMessage), false, requeue);
+            }
+        } catch (final IOException e) {
+            log.error("Batch of {} transaction messages not nacked: {}", transactionMessages.size(), e.getMessage());
+        }
+    }
+
+    private static long deliveryTagOf(final Message<?> message) {
+        return message.getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class);
+    }
+}
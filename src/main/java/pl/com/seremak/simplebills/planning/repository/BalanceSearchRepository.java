@@ -0,0 +1,128 @@
+package pl.com.seremak.simplebills.planning.repository;
+
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Repository;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.utils.VersionedEntityUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.SET_ON_INSERT;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.incrementRevision;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.prepareSetOnInsertDocument;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.toDecimal128;
+
+@Repository
+@RequiredArgsConstructor
+public class BalanceSearchRepository {
+
+    private static final String USERNAME_FIELD = "username";
+    private static final String BALANCE_FIELD = "balance";
+    private final ReactiveMongoTemplate mongoTemplate;
+
+
+    public Mono<Revised<Balance>> findBalance(final String username) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Balance.class))
+                .flatMap(collection -> Mono.from(collection.find(prepareBalanceFilter(username)).first()))
+                .map(document -> Revised.read(mongoTemplate.getConverter(), Balance.class, document));
+    }
+
+    /**
+     * Atomically increments the balance of given user, creating the balance if it does not exist yet. One round trip.
+     */
+    public Mono<Revised<Balance>> incrementBalance(final String username, final BigDecimal balanceDelta) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Balance.class))
+                .flatMap(collection -> Mono.from(collection.findOneAndUpdate(
+                        prepareBalanceFilter(username),
+                        prepareIncrementBalanceUpdate(username, balanceDelta),
+                        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER))))
+                .map(document -> Revised.read(mongoTemplate.getConverter(), Balance.class, document));
+    }
+
+    /**
+     * Applies balance deltas, keyed by username, as one unordered bulk write.
+     */
+    public Mono<BulkWriteResult> incrementBalances(final Map<String, BigDecimal> balanceDeltas) {
+        if (balanceDeltas.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<WriteModel<Document>> incrementModels = balanceDeltas.entrySet().stream()
+                .map(balanceDelta -> prepareIncrementBalanceModel(balanceDelta.getKey(), balanceDelta.getValue()))
+                .toList();
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Balance.class))
+                .flatMap(collection -> Mono.from(collection.bulkWrite(incrementModels, new BulkWriteOptions().ordered(false))));
+    }
+
+    public Flux<Balance> findBalances(final Collection<String> usernames) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Balance.class))
+                .flatMapMany(collection -> collection.find(Filters.in(USERNAME_FIELD, usernames)))
+                .map(document -> mongoTemplate.getConverter().read(Balance.class, document));
+    }
+
+    /**
+     * Replaces balances, keyed by username, as one unordered bulk write. Missing balances are created.
+     */
+    public Mono<BulkWriteResult> setBalances(final Map<String, BigDecimal> balances) {
+        if (balances.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<WriteModel<Document>> setModels = balances.entrySet().stream()
+                .map(balance -> prepareSetBalanceModel(balance.getKey(), balance.getValue()))
+                .toList();
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Balance.class))
+                .flatMap(collection -> Mono.from(collection.bulkWrite(setModels, new BulkWriteOptions().ordered(false))));
+    }
+
+    private WriteModel<Document> prepareSetBalanceModel(final String username, final BigDecimal balance) {
+        final Balance newBalance = VersionedEntityUtils.setMetadata(new Balance(username, BigDecimal.ZERO));
+        return new UpdateOneModel<>(
+                prepareBalanceFilter(username),
+                Updates.combine(
+                        Updates.set(BALANCE_FIELD, toDecimal128(balance)),
+                        incrementRevision(),
+                        new Document(SET_ON_INSERT, prepareSetOnInsertDocument(mongoTemplate.getConverter(), newBalance, BALANCE_FIELD))),
+                new UpdateOptions().upsert(true));
+    }
+
+    private WriteModel<Document> prepareIncrementBalanceModel(final String username, final BigDecimal balanceDelta) {
+        return new UpdateOneModel<>(
+                prepareBalanceFilter(username),
+                prepareIncrementBalanceUpdate(username, balanceDelta),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Zero delta, e.g. when creating balances which may already exist, leaves the revision as it is.
+     */
+    private Bson prepareIncrementBalanceUpdate(final String username, final BigDecimal balanceDelta) {
+        final Balance newBalance = VersionedEntityUtils.setMetadata(new Balance(username, BigDecimal.ZERO));
+        final Bson balanceUpdate = balanceDelta.signum() == 0 ?
+                Updates.inc(BALANCE_FIELD, toDecimal128(balanceDelta)) :
+                Updates.combine(Updates.inc(BALANCE_FIELD, toDecimal128(balanceDelta)), incrementRevision());
+        return Updates.combine(
+                balanceUpdate,
+                new Document(SET_ON_INSERT, prepareSetOnInsertDocument(mongoTemplate.getConverter(), newBalance, BALANCE_FIELD)));
+    }
+
+    private static Bson prepareBalanceFilter(final String username) {
+        return Filters.eq(USERNAME_FIELD, username);
+    }
+}
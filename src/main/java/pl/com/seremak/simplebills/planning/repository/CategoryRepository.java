@@ -6,14 +6,20 @@ import pl.com.seremak.simplebills.commons.model.Category;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 @Repository
 public interface CategoryRepository extends ReactiveCrudRepository<Category, String> {
 
     Flux<Category> findCategoriesByUsername(final String username);
 
+    Flux<Category> findCategoriesByUsernameIn(final Collection<String> usernames);
+
     Flux<Category> findCategoriesByUsernameAndName(final String username, final String name);
 
     Flux<Category> findCategoriesByUsernameAndType(final String username, final Category.Type type);
 
+    Flux<Category> findCategoriesByUsernameInAndType(final Collection<String> usernames, final Category.Type type);
+
     Mono<Category> deleteCategoryByUsernameAndName(final String username, final String name);
 }
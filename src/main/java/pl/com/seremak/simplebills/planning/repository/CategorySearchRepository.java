@@ -1,34 +1,102 @@
 package pl.com.seremak.simplebills.planning.repository;
 
+import com.mongodb.client.model.Filters;
+import com.mongodb.lang.Nullable;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Repository;
 import pl.com.seremak.simplebills.commons.model.Category;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import static java.util.Objects.nonNull;
 import static pl.com.seremak.simplebills.commons.utils.MongoQueryHelper.preparePartialUpdateQuery;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.REVISION_FIELD;
 
 @Repository
 @RequiredArgsConstructor
 public class CategorySearchRepository {
 
+    private static final String USERNAME_FIELD = "username";
+    private static final String NAME_FIELD = "name";
+    private static final String TYPE_FIELD = "type";
+    private static final String TRANSACTION_TYPE_FIELD = "transactionType";
+    private static final String[] LISTING_FIELDS = {NAME_FIELD, TYPE_FIELD, TRANSACTION_TYPE_FIELD, "limit"};
     private final ReactiveMongoTemplate mongoTemplate;
 
 
     public Mono<Category> updateCategory(final Category category) {
+        final Update update = preparePartialUpdateQuery(category, Category.class)
+                .inc(REVISION_FIELD, 1L);
         return mongoTemplate.findAndModify(
                 prepareFindBillQuery(category.getUsername(), category.getName()),
-                preparePartialUpdateQuery(category, Category.class),
+                update,
                 new FindAndModifyOptions().returnNew(true),
                 Category.class);
     }
 
+    public Flux<Revised<Category>> findRevisedCategories(final String username) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Category.class))
+                .flatMapMany(collection -> collection.find(Filters.eq(USERNAME_FIELD, username)))
+                .map(document -> Revised.read(mongoTemplate.getConverter(), Category.class, document));
+    }
+
+    /**
+     * Streams categories of the user in name order, as they are stored in the username + name index.
+     */
+    public Flux<Category> findCategoriesOrderedByName(final String username) {
+        return mongoTemplate.find(prepareFindCategoriesQuery(username), Category.class);
+    }
+
+    /**
+     * Keyset page of categories with names greater than the cursor. Only fields needed by listing views are read.
+     */
+    public Flux<Category> findCategoriesPage(final String username, @Nullable final String afterName, final int limit) {
+        final Query pageQuery = prepareFindCategoriesQuery(username)
+                .limit(limit);
+        if (nonNull(afterName)) {
+            pageQuery.addCriteria(Criteria.where(NAME_FIELD).gt(afterName));
+        }
+        pageQuery.fields()
+                .include(LISTING_FIELDS)
+                .exclude(ID_FIELD);
+        return mongoTemplate.find(pageQuery, Category.class);
+    }
+
+    /**
+     * Keyset page of categories of all users, for which CategoryUsageLimits are tracked, ordered by username and name.
+     */
+    public Flux<Category> findTrackedCategoriesPage(@Nullable final String afterUsername,
+                                                    @Nullable final String afterName,
+                                                    final int limit) {
+        final Query pageQuery = new Query()
+                .addCriteria(Criteria.where(TRANSACTION_TYPE_FIELD).is(Category.TransactionType.EXPENSE))
+                .addCriteria(Criteria.where(TYPE_FIELD).ne(Category.Type.UNDEFINED))
+                .with(Sort.by(USERNAME_FIELD, NAME_FIELD))
+                .limit(limit);
+        if (nonNull(afterUsername)) {
+            pageQuery.addCriteria(new Criteria().orOperator(
+                    Criteria.where(USERNAME_FIELD).gt(afterUsername),
+                    Criteria.where(USERNAME_FIELD).is(afterUsername).and(NAME_FIELD).gt(afterName)));
+        }
+        return mongoTemplate.find(pageQuery, Category.class);
+    }
+
+    private static Query prepareFindCategoriesQuery(final String username) {
+        return new Query()
+                .addCriteria(Criteria.where(USERNAME_FIELD).is(username))
+                .with(Sort.by(USERNAME_FIELD, NAME_FIELD));
+    }
+
     private static Query prepareFindBillQuery(final String username, final String categoryName) {
         return new Query()
-                .addCriteria(Criteria.where("username").is(username))
-                .addCriteria(Criteria.where("name").is(categoryName));
+                .addCriteria(Criteria.where(USERNAME_FIELD).is(username))
+                .addCriteria(Criteria.where(NAME_FIELD).is(categoryName));
     }
 }
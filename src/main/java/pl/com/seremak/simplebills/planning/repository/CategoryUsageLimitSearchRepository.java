@@ -1,36 +1,282 @@
 package pl.com.seremak.simplebills.planning.repository;
 
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 import lombok.RequiredArgsConstructor;
-import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Repository;
 import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.commons.utils.VersionedEntityUtils;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import static pl.com.seremak.simplebills.commons.utils.MongoQueryHelper.preparePartialUpdateQuery;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.Objects.nonNull;
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.TOTAL_CATEGORY_NAME;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.REVISION_FIELD;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.SET_ON_INSERT;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.incrementRevision;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.prepareSetOnInsertDocument;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.toDecimal128;
 
 @Repository
 @RequiredArgsConstructor
 public class CategoryUsageLimitSearchRepository {
 
+    private static final String USERNAME_FIELD = "username";
+    private static final String CATEGORY_NAME_FIELD = "categoryName";
+    private static final String YEAR_MONTH_FIELD = "yearMonth";
+    private static final String USAGE_FIELD = "usage";
+    private static final String LIMIT_FIELD = "limit";
+    private static final String VERSIONS_FIELD = "versions";
+    private static final String LITERAL = "$literal";
     private final ReactiveMongoTemplate mongoTemplate;
 
 
-    public Mono<CategoryUsageLimit> updateCategoryUsageLimit(final CategoryUsageLimit categoryUsageLimit) {
-        return mongoTemplate.findAndModify(
-                prepareFindBillQuery(categoryUsageLimit.getUsername(), categoryUsageLimit.getCategoryName(), categoryUsageLimit.getYearMonth()),
-                preparePartialUpdateQuery(categoryUsageLimit, CategoryUsageLimit.class),
-                new FindAndModifyOptions().returnNew(true),
-                CategoryUsageLimit.class);
+    /**
+     * Sets the limit of the month, creating the CategoryUsageLimit with zero usage if it does not exist yet. Usage is not
+     * part of the update, so concurrent increments are kept.
+     */
+    public Mono<Revised<CategoryUsageLimit>> upsertLimit(final CategoryUsageLimit categoryUsageLimit) {
+        return findOneAndUpdate(categoryUsageLimit, prepareUpsertLimitUpdate(categoryUsageLimit), true);
+    }
+
+    /**
+     * Sets the limit of CategoryUsageLimits already created for months after the given one, e.g. by the month rollover.
+     */
+    public Mono<UpdateResult> updateLimitAfter(final String username, final String categoryName, final String yearMonth, final BigDecimal limit) {
+        final Bson laterMonthsFilter = Filters.and(
+                Filters.eq(USERNAME_FIELD, username),
+                Filters.eq(CATEGORY_NAME_FIELD, categoryName),
+                Filters.gt(YEAR_MONTH_FIELD, yearMonth));
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.updateMany(laterMonthsFilter,
+                        Updates.combine(prepareSetLimitUpdate(limit), incrementRevision()))));
+    }
+
+    public Flux<Revised<CategoryUsageLimit>> findCategoryUsageLimitsWithUsage(final String username, final String yearMonth) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMapMany(collection -> collection.find(prepareWithUsageFilter(username, Filters.eq(YEAR_MONTH_FIELD, yearMonth))))
+                .map(document -> Revised.read(mongoTemplate.getConverter(), CategoryUsageLimit.class, document));
+    }
+
+    public Flux<CategoryUsageLimit> findCategoryUsageLimits(final Collection<String> usernames) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMapMany(collection -> collection.find(Filters.in(USERNAME_FIELD, usernames)))
+                .map(document -> mongoTemplate.getConverter().read(CategoryUsageLimit.class, document));
+    }
+
+    /**
+     * Scans months from the range with one query on the username + yearMonth + categoryName index. Documents come
+     * in index order, sorted by yearMonth and then by categoryName, so no in-memory sort is needed.
+     */
+    public Flux<CategoryUsageLimit> findCategoryUsageLimitsWithUsage(final String username,
+                                                                     final String fromYearMonth,
+                                                                     final String toYearMonth,
+                                                                     final String categoryName) {
+        final Bson yearMonthRangeFilter = Filters.and(
+                Filters.gte(YEAR_MONTH_FIELD, fromYearMonth),
+                Filters.lte(YEAR_MONTH_FIELD, toYearMonth));
+        final Bson rangeFilter = nonNull(categoryName) ?
+                Filters.and(yearMonthRangeFilter, Filters.eq(CATEGORY_NAME_FIELD, categoryName)) :
+                yearMonthRangeFilter;
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMapMany(collection -> collection.find(prepareWithUsageFilter(username, rangeFilter))
+                        .sort(Sorts.ascending(USERNAME_FIELD, YEAR_MONTH_FIELD, CATEGORY_NAME_FIELD)))
+                .map(document -> mongoTemplate.getConverter().read(CategoryUsageLimit.class, document));
+    }
+
+    /**
+     * Sums usages and limits of the month on the server side, returning them as a single "total" CategoryUsageLimit
+     * together with versions of the summed documents. Completes empty if there is no usage in the month.
+     */
+    public Mono<TotalCategoryUsageLimit> findTotalCategoryUsageLimit(final String username, final String yearMonth) {
+        final Document versionExpression = new Document("$concat", List.of(
+                new Document("$toString", "$" + ID_FIELD),
+                ".",
+                new Document("$toString", new Document("$ifNull", List.of("$" + REVISION_FIELD, 0)))));
+        final List<Bson> totalPipeline = List.of(
+                Aggregates.match(prepareWithUsageFilter(username, Filters.eq(YEAR_MONTH_FIELD, yearMonth))),
+                Aggregates.group(null,
+                        Accumulators.sum(USAGE_FIELD, "$" + USAGE_FIELD),
+                        Accumulators.sum(LIMIT_FIELD, "$" + LIMIT_FIELD),
+                        Accumulators.push(VERSIONS_FIELD, versionExpression)),
+                Aggregates.project(Projections.fields(
+                        Projections.excludeId(),
+                        Projections.include(USAGE_FIELD, LIMIT_FIELD, VERSIONS_FIELD),
+                        Projections.computed(USERNAME_FIELD, new Document(LITERAL, username)),
+                        Projections.computed(CATEGORY_NAME_FIELD, new Document(LITERAL, TOTAL_CATEGORY_NAME)),
+                        Projections.computed(YEAR_MONTH_FIELD, new Document(LITERAL, yearMonth)))));
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.aggregate(totalPipeline).first()))
+                .map(document -> new TotalCategoryUsageLimit(
+                        mongoTemplate.getConverter().read(CategoryUsageLimit.class, document),
+                        document.getList(VERSIONS_FIELD, String.class)));
+    }
+
+    /**
+     * Atomically increments usage of an existing CategoryUsageLimit. Completes empty if there is no document for the month.
+     */
+    public Mono<Revised<CategoryUsageLimit>> incrementUsage(final CategoryUsageLimit usageDelta) {
+        return findOneAndUpdate(usageDelta,
+                Updates.combine(Updates.inc(USAGE_FIELD, toDecimal128(usageDelta.getUsage())), incrementRevision()),
+                false);
+    }
+
+    /**
+     * Atomically increments usage, creating the CategoryUsageLimit with given limit if it does not exist yet.
+     */
+    public Mono<Revised<CategoryUsageLimit>> upsertUsage(final CategoryUsageLimit usageDelta) {
+        return findOneAndUpdate(usageDelta, prepareUpsertUsageUpdate(usageDelta), true);
+    }
+
+    /**
+     * Applies usage deltas as one unordered bulk write. Each given CategoryUsageLimit carries the delta in its usage field
+     * and the limit used when the document for the month does not exist yet.
+     */
+    public Mono<BulkWriteResult> incrementUsages(final Collection<CategoryUsageLimit> usageDeltas) {
+        if (usageDeltas.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<WriteModel<Document>> incrementModels = usageDeltas.stream()
+                .map(this::prepareIncrementUsageModel)
+                .toList();
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.bulkWrite(incrementModels, new BulkWriteOptions().ordered(false))));
+    }
+
+    /**
+     * Replaces usages as one unordered bulk write. Each given CategoryUsageLimit carries the new usage and the limit
+     * used when the document for the month does not exist yet.
+     */
+    public Mono<BulkWriteResult> setUsages(final Collection<CategoryUsageLimit> usages) {
+        if (usages.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<WriteModel<Document>> setModels = usages.stream()
+                .map(usage -> new UpdateOneModel<Document>(
+                        prepareUsageFilter(usage),
+                        prepareUpsertUsageUpdate(usage, Updates.set(USAGE_FIELD, toDecimal128(usage.getUsage()))),
+                        new UpdateOptions().upsert(true)))
+                .toList();
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.bulkWrite(setModels, new BulkWriteOptions().ordered(false))));
+    }
+
+    /**
+     * Inserts CategoryUsageLimits with one unordered insertMany. Already existing ones are rejected by the unique index
+     * and skipped, so the insert can be repeated. Emits the number of inserted documents.
+     */
+    public Mono<Integer> insertAllIfNotExist(final Collection<CategoryUsageLimit> categoryUsageLimits) {
+        if (categoryUsageLimits.isEmpty()) {
+            return Mono.just(0);
+        }
+        final List<Document> documents = categoryUsageLimits.stream()
+                .map(VersionedEntityUtils::setMetadata)
+                .map(categoryUsageLimit -> prepareSetOnInsertDocument(mongoTemplate.getConverter(), categoryUsageLimit))
+                .toList();
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .map(insertManyResult -> insertManyResult.getInsertedIds().size())
+                .onErrorResume(CategoryUsageLimitSearchRepository::hasOnlyDuplicateKeyErrors, error ->
+                        Mono.just(documents.size() - ((MongoBulkWriteException) error).getWriteErrors().size()));
+    }
+
+    private Mono<Revised<CategoryUsageLimit>> findOneAndUpdate(final CategoryUsageLimit usageDelta, final Bson update, final boolean upsert) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit.class))
+                .flatMap(collection -> Mono.from(collection.findOneAndUpdate(
+                        prepareUsageFilter(usageDelta),
+                        update,
+                        new FindOneAndUpdateOptions().upsert(upsert).returnDocument(ReturnDocument.AFTER))))
+                .map(document -> Revised.read(mongoTemplate.getConverter(), CategoryUsageLimit.class, document));
+    }
+
+    private static boolean hasOnlyDuplicateKeyErrors(final Throwable error) {
+        return error instanceof MongoBulkWriteException bulkWriteException
+                && bulkWriteException.getWriteConcernError() == null
+                && bulkWriteException.getWriteErrors().stream()
+                .allMatch(writeError -> ErrorCategory.DUPLICATE_KEY.equals(ErrorCategory.fromErrorCode(writeError.getCode())));
+    }
+
+    private WriteModel<Document> prepareIncrementUsageModel(final CategoryUsageLimit usageDelta) {
+        return new UpdateOneModel<>(
+                prepareUsageFilter(usageDelta),
+                prepareUpsertUsageUpdate(usageDelta),
+                new UpdateOptions().upsert(true));
+    }
+
+    private Bson prepareUpsertUsageUpdate(final CategoryUsageLimit usageDelta) {
+        return prepareUpsertUsageUpdate(usageDelta, Updates.inc(USAGE_FIELD, toDecimal128(usageDelta.getUsage())));
+    }
+
+    private Bson prepareUpsertUsageUpdate(final CategoryUsageLimit usageDelta, final Bson usageUpdate) {
+        return prepareUpsertUpdate(usageDelta, usageUpdate, USAGE_FIELD);
+    }
+
+    private Bson prepareUpsertLimitUpdate(final CategoryUsageLimit categoryUsageLimit) {
+        return prepareUpsertUpdate(categoryUsageLimit, prepareSetLimitUpdate(categoryUsageLimit.getLimit()), LIMIT_FIELD);
+    }
+
+    private static Bson prepareSetLimitUpdate(final BigDecimal limit) {
+        return Updates.set(LIMIT_FIELD, nonNull(limit) ? toDecimal128(limit) : null);
+    }
+
+    /**
+     * Combines the update with $setOnInsert of the whole new CategoryUsageLimit, except for the updated field.
+     */
+    private Bson prepareUpsertUpdate(final CategoryUsageLimit categoryUsageLimit, final Bson update, final String updatedField) {
+        final CategoryUsageLimit newCategoryUsageLimit = VersionedEntityUtils.setMetadata(CategoryUsageLimit.builder()
+                .username(categoryUsageLimit.getUsername())
+                .categoryName(categoryUsageLimit.getCategoryName())
+                .yearMonth(categoryUsageLimit.getYearMonth())
+                .limit(categoryUsageLimit.getLimit())
+                .usage(BigDecimal.ZERO)
+                .build());
+        return Updates.combine(
+                update,
+                incrementRevision(),
+                new Document(SET_ON_INSERT, prepareSetOnInsertDocument(mongoTemplate.getConverter(), newCategoryUsageLimit, updatedField)));
+    }
+
+    /**
+     * Usages are compared numerically, so zero matches regardless of its scale.
+     */
+    private static Bson prepareWithUsageFilter(final String username, final Bson yearMonthFilter) {
+        return Filters.and(
+                Filters.eq(USERNAME_FIELD, username),
+                yearMonthFilter,
+                Filters.nin(USAGE_FIELD, 0, null));
+    }
+
+    private static Bson prepareUsageFilter(final CategoryUsageLimit categoryUsageLimit) {
+        return Filters.and(
+                Filters.eq(USERNAME_FIELD, categoryUsageLimit.getUsername()),
+                Filters.eq(CATEGORY_NAME_FIELD, categoryUsageLimit.getCategoryName()),
+                Filters.eq(YEAR_MONTH_FIELD, categoryUsageLimit.getYearMonth()));
     }
 
-    private static Query prepareFindBillQuery(final String username, final String categoryName, final String yearMonth) {
-        return new Query()
-                .addCriteria(Criteria.where("username").is(username))
-                .addCriteria(Criteria.where("categoryName").is(categoryName))
-                .addCriteria(Criteria.where("yearMonth").is(yearMonth));
+    public record TotalCategoryUsageLimit(CategoryUsageLimit total, List<String> versions) {
     }
 }
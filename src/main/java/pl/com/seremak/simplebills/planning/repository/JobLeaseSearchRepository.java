@@ -0,0 +1,83 @@
+package pl.com.seremak.simplebills.planning.repository;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+
+/**
+ * Leases of scheduled jobs, one document per job. The replica holding a non-expired lease is the only one running the job.
+ * The lease document also keeps the job checkpoint, so the next holder can resume interrupted work.
+ */
+@Repository
+@RequiredArgsConstructor
+public class JobLeaseSearchRepository {
+
+    public static final String JOB_LEASES_COLLECTION = "jobLeases";
+    public static final String CHECKPOINT_FIELD = "checkpoint";
+    private static final String OWNER_FIELD = "owner";
+    private static final String LEASE_UNTIL_FIELD = "leaseUntil";
+    private final ReactiveMongoTemplate mongoTemplate;
+
+
+    /**
+     * Emits the lease document if the lease has been acquired or renewed by the owner. Completes empty if another
+     * replica holds the lease.
+     */
+    public Mono<Document> acquire(final String jobName, final String owner, final Duration lease) {
+        return mongoTemplate.getCollection(JOB_LEASES_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.findOneAndUpdate(
+                        Filters.and(
+                                Filters.eq(ID_FIELD, jobName),
+                                Filters.or(Filters.lt(LEASE_UNTIL_FIELD, new Date()), Filters.eq(OWNER_FIELD, owner))),
+                        Updates.combine(
+                                Updates.set(OWNER_FIELD, owner),
+                                Updates.set(LEASE_UNTIL_FIELD, Date.from(Instant.now().plus(lease)))),
+                        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER))))
+                .onErrorResume(JobLeaseSearchRepository::isDuplicateKeyError, __ -> Mono.empty());
+    }
+
+    /**
+     * Extends the lease and saves the checkpoint. Emits false if the lease has been lost.
+     */
+    public Mono<Boolean> renew(final String jobName, final String owner, final Duration lease, final Document checkpoint) {
+        return mongoTemplate.getCollection(JOB_LEASES_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.updateOne(
+                        Filters.and(Filters.eq(ID_FIELD, jobName), Filters.eq(OWNER_FIELD, owner)),
+                        Updates.combine(
+                                Updates.set(LEASE_UNTIL_FIELD, Date.from(Instant.now().plus(lease))),
+                                Updates.set(CHECKPOINT_FIELD, checkpoint)))))
+                .map(updateResult -> updateResult.getMatchedCount() == 1);
+    }
+
+    public Mono<Void> release(final String jobName, final String owner) {
+        return mongoTemplate.getCollection(JOB_LEASES_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.updateOne(
+                        Filters.and(Filters.eq(ID_FIELD, jobName), Filters.eq(OWNER_FIELD, owner)),
+                        Updates.set(LEASE_UNTIL_FIELD, new Date()))))
+                .map(UpdateResult::getMatchedCount)
+                .then();
+    }
+
+    private static boolean isDuplicateKeyError(final Throwable error) {
+        return (error instanceof MongoWriteException writeException
+                && ErrorCategory.DUPLICATE_KEY.equals(writeException.getError().getCategory()))
+                || (error instanceof MongoCommandException commandException
+                && ErrorCategory.DUPLICATE_KEY.equals(ErrorCategory.fromErrorCode(commandException.getErrorCode())));
+    }
+}
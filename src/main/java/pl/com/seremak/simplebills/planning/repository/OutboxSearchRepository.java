@@ -0,0 +1,117 @@
+package pl.com.seremak.simplebills.planning.repository;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.DeleteResult;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Date;
+
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+
+/**
+ * Messages waiting to be published. A message is inserted together with the change it describes and deleted
+ * once the broker confirms it. Relays claim batches for the lease duration, so replicas do not publish the same messages.
+ */
+@Repository
+@RequiredArgsConstructor
+public class OutboxSearchRepository {
+
+    public static final String OUTBOX_COLLECTION = "outbox";
+    public static final String EXCHANGE_FIELD = "exchange";
+    public static final String ROUTING_KEY_FIELD = "routingKey";
+    public static final String PAYLOAD_TYPE_FIELD = "payloadType";
+    public static final String PAYLOAD_FIELD = "payload";
+    public static final String CREATED_AT_FIELD = "createdAt";
+    private static final String CLAIMED_BY_FIELD = "claimedBy";
+    private static final String CLAIMED_UNTIL_FIELD = "claimedUntil";
+    private static final String ATTEMPTS_FIELD = "attempts";
+    private final ReactiveMongoTemplate mongoTemplate;
+
+
+    public Mono<String> ensureIndex() {
+        return mongoTemplate.getCollection(OUTBOX_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.createIndex(Indexes.ascending(CREATED_AT_FIELD))));
+    }
+
+    /**
+     * Inserted with the template, so the message is a part of the ongoing transaction.
+     */
+    public Mono<Document> insert(final String exchange, final String routingKey, final String payloadType, final String payload) {
+        final Document outboxMessage = new Document(EXCHANGE_FIELD, exchange)
+                .append(ROUTING_KEY_FIELD, routingKey)
+                .append(PAYLOAD_TYPE_FIELD, payloadType)
+                .append(PAYLOAD_FIELD, payload)
+                .append(CREATED_AT_FIELD, new Date())
+                .append(ATTEMPTS_FIELD, 0);
+        return mongoTemplate.insert(outboxMessage, OUTBOX_COLLECTION);
+    }
+
+    /**
+     * Creation time of the oldest message, which is not claimed or whose claim has expired. Completes empty if there is none.
+     */
+    public Mono<Date> findOldestClaimableCreatedAt() {
+        return mongoTemplate.getCollection(OUTBOX_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.find(prepareClaimableFilter(new Date()))
+                        .sort(Sorts.ascending(CREATED_AT_FIELD))
+                        .projection(Projections.include(CREATED_AT_FIELD))
+                        .first()))
+                .mapNotNull(document -> document.getDate(CREATED_AT_FIELD));
+    }
+
+    /**
+     * Claims up to batchSize oldest messages, which are not claimed or whose claim has expired, and emits them in creation order.
+     */
+    public Flux<Document> claimBatch(final String owner, final int batchSize, final Duration lease) {
+        final Date now = new Date();
+        final Date claimedUntil = Date.from(Instant.now().plus(lease));
+        final Bson claimableFilter = prepareClaimableFilter(now);
+        return mongoTemplate.getCollection(OUTBOX_COLLECTION)
+                .flatMap(collection -> Flux.from(collection.find(claimableFilter)
+                                .sort(Sorts.ascending(CREATED_AT_FIELD))
+                                .limit(batchSize)
+                                .projection(Projections.include(ID_FIELD)))
+                        .map(document -> document.getObjectId(ID_FIELD))
+                        .collectList()
+                        .filter(ids -> !ids.isEmpty())
+                        .flatMap(ids -> Mono.from(collection.updateMany(
+                                        Filters.and(Filters.in(ID_FIELD, ids), claimableFilter),
+                                        Updates.combine(
+                                                Updates.set(CLAIMED_BY_FIELD, owner),
+                                                Updates.set(CLAIMED_UNTIL_FIELD, claimedUntil),
+                                                Updates.inc(ATTEMPTS_FIELD, 1))))
+                                .thenReturn(ids))
+                        .map(ids -> collection.find(Filters.and(
+                                        Filters.in(ID_FIELD, ids),
+                                        Filters.eq(CLAIMED_BY_FIELD, owner),
+                                        Filters.eq(CLAIMED_UNTIL_FIELD, claimedUntil)))
+                                .sort(Sorts.ascending(CREATED_AT_FIELD))))
+                .flatMapMany(Flux::from);
+    }
+
+    public Mono<Long> deleteAll(final Collection<ObjectId> ids) {
+        if (ids.isEmpty()) {
+            return Mono.just(0L);
+        }
+        return mongoTemplate.getCollection(OUTBOX_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.deleteMany(Filters.in(ID_FIELD, ids))))
+                .map(DeleteResult::getDeletedCount);
+    }
+
+    private static Bson prepareClaimableFilter(final Date now) {
+        return Filters.or(Filters.exists(CLAIMED_UNTIL_FIELD, false), Filters.lt(CLAIMED_UNTIL_FIELD, now));
+    }
+}
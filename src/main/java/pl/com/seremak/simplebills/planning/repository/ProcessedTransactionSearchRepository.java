@@ -0,0 +1,179 @@
+package pl.com.seremak.simplebills.planning.repository;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+
+/**
+ * Keys of posted transactions. The key is stored as _id, so uniqueness is guaranteed by the primary index,
+ * and documents are removed by the TTL index after the deduplication window. A key is inserted as pending before
+ * the transaction is posted and marked as done after it is posted. A pending key whose timeout has passed belongs
+ * to a posting interrupted e.g. by a crash, so it can be claimed again. Keys without status were inserted before
+ * the status was introduced and are treated as done.
+ */
+@Repository
+@RequiredArgsConstructor
+public class ProcessedTransactionSearchRepository {
+
+    public static final String PROCESSED_TRANSACTIONS_COLLECTION = "processedTransactions";
+    private static final String PROCESSED_AT_FIELD = "processedAt";
+    private static final String STATUS_FIELD = "status";
+    private static final String PENDING_UNTIL_FIELD = "pendingUntil";
+    private static final String PENDING_STATUS = "pending";
+    private static final String DONE_STATUS = "done";
+    private final ReactiveMongoTemplate mongoTemplate;
+
+
+    public Mono<String> ensureTtlIndex(final Duration ttl) {
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.createIndex(
+                        Indexes.ascending(PROCESSED_AT_FIELD),
+                        new IndexOptions().expireAfter(ttl.toSeconds(), TimeUnit.SECONDS))));
+    }
+
+    /**
+     * Inserts the key as pending, or takes over the pending key whose timeout has passed. Emits the status the key had,
+     * {@link ClaimResult#CLAIMED} if it has been claimed by this call.
+     */
+    public Mono<ClaimResult> claim(final String transactionKey, final Duration pendingTimeout) {
+        final Date now = new Date();
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.insertOne(preparePendingDocument(transactionKey, now, pendingTimeout)))
+                        .thenReturn(ClaimResult.CLAIMED)
+                        .onErrorResume(ProcessedTransactionSearchRepository::isDuplicateKeyError, __ ->
+                                claimExpired(collection, transactionKey, now, pendingTimeout)));
+    }
+
+    /**
+     * Claims keys with one unordered insertMany. Already existing keys are rejected by the primary index, and only
+     * they are claimed one by one, as they are the rare redeliveries. Emits the result of each key.
+     */
+    public Mono<Map<String, ClaimResult>> claimAll(final List<String> transactionKeys, final Duration pendingTimeout) {
+        if (transactionKeys.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+        final Date now = new Date();
+        final List<Document> pendingDocuments = transactionKeys.stream()
+                .map(transactionKey -> preparePendingDocument(transactionKey, now, pendingTimeout))
+                .toList();
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.insertMany(pendingDocuments, new InsertManyOptions().ordered(false)))
+                        .map(__ -> Set.copyOf(transactionKeys))
+                        .onErrorResume(ProcessedTransactionSearchRepository::hasOnlyDuplicateKeyErrors, error ->
+                                Mono.just(findInsertedKeys(transactionKeys, (MongoBulkWriteException) error)))
+                        .flatMap(insertedKeys -> Flux.fromIterable(transactionKeys)
+                                .concatMap(transactionKey -> insertedKeys.contains(transactionKey) ?
+                                        Mono.just(Map.entry(transactionKey, ClaimResult.CLAIMED)) :
+                                        claimExpired(collection, transactionKey, now, pendingTimeout)
+                                                .map(claimResult -> Map.entry(transactionKey, claimResult)))
+                                .collectMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    public Mono<Void> markDone(final Collection<String> transactionKeys) {
+        if (transactionKeys.isEmpty()) {
+            return Mono.empty();
+        }
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.updateMany(
+                        Filters.in(ID_FIELD, transactionKeys),
+                        Updates.combine(Updates.set(STATUS_FIELD, DONE_STATUS), Updates.unset(PENDING_UNTIL_FIELD)))))
+                .then();
+    }
+
+    public Mono<Void> delete(final String transactionKey) {
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.deleteOne(Filters.eq(ID_FIELD, transactionKey))))
+                .then();
+    }
+
+    public Mono<Void> deleteAll(final Collection<String> transactionKeys) {
+        if (transactionKeys.isEmpty()) {
+            return Mono.empty();
+        }
+        return mongoTemplate.getCollection(PROCESSED_TRANSACTIONS_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.deleteMany(Filters.in(ID_FIELD, transactionKeys))))
+                .then();
+    }
+
+    /**
+     * The key may be deleted between the insert and the takeover, when the posting holding it fails. It is reported as
+     * in progress then, so the transaction is redelivered and claimed again.
+     */
+    private static Mono<ClaimResult> claimExpired(final MongoCollection<Document> collection,
+                                                  final String transactionKey,
+                                                  final Date now,
+                                                  final Duration pendingTimeout) {
+        return Mono.from(collection.findOneAndUpdate(
+                        Filters.and(
+                                Filters.eq(ID_FIELD, transactionKey),
+                                Filters.eq(STATUS_FIELD, PENDING_STATUS),
+                                Filters.lt(PENDING_UNTIL_FIELD, now)),
+                        Updates.combine(
+                                Updates.set(PENDING_UNTIL_FIELD, Date.from(now.toInstant().plus(pendingTimeout))),
+                                Updates.set(PROCESSED_AT_FIELD, now))))
+                .map(__ -> ClaimResult.CLAIMED)
+                .switchIfEmpty(Mono.defer(() -> Mono.from(collection.find(Filters.eq(ID_FIELD, transactionKey)).first())
+                        .map(document -> PENDING_STATUS.equals(document.getString(STATUS_FIELD)) ? ClaimResult.IN_PROGRESS : ClaimResult.DONE)
+                        .defaultIfEmpty(ClaimResult.IN_PROGRESS)));
+    }
+
+    private static Document preparePendingDocument(final String transactionKey, final Date now, final Duration pendingTimeout) {
+        return new Document(ID_FIELD, transactionKey)
+                .append(STATUS_FIELD, PENDING_STATUS)
+                .append(PENDING_UNTIL_FIELD, Date.from(now.toInstant().plus(pendingTimeout)))
+                .append(PROCESSED_AT_FIELD, now);
+    }
+
+    private static Set<String> findInsertedKeys(final List<String> transactionKeys, final MongoBulkWriteException error) {
+        final Set<Integer> rejectedIndexes = error.getWriteErrors().stream()
+                .map(BulkWriteError::getIndex)
+                .collect(Collectors.toSet());
+        return IntStream.range(0, transactionKeys.size())
+                .filter(index -> !rejectedIndexes.contains(index))
+                .mapToObj(transactionKeys::get)
+                .collect(Collectors.toSet());
+    }
+
+    private static boolean hasOnlyDuplicateKeyErrors(final Throwable error) {
+        return error instanceof MongoBulkWriteException bulkWriteException
+                && bulkWriteException.getWriteConcernError() == null
+                && bulkWriteException.getWriteErrors().stream()
+                .allMatch(writeError -> ErrorCategory.DUPLICATE_KEY.equals(ErrorCategory.fromErrorCode(writeError.getCode())));
+    }
+
+    private static boolean isDuplicateKeyError(final Throwable error) {
+        return error instanceof MongoWriteException writeException
+                && ErrorCategory.DUPLICATE_KEY.equals(writeException.getError().getCategory());
+    }
+
+    public enum ClaimResult {
+        CLAIMED,
+        IN_PROGRESS,
+        DONE
+    }
+}
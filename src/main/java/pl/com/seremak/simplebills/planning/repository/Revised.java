@@ -0,0 +1,24 @@
+package pl.com.seremak.simplebills.planning.repository;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.readRevision;
+
+/**
+ * Entity read together with the id and revision of its document, which the entity classes do not map.
+ */
+public record Revised<T>(T entity, String documentId, long revision) {
+
+    public static <T> Revised<T> read(final MongoConverter converter, final Class<T> entityClass, final Document document) {
+        return new Revised<>(converter.read(entityClass, document), String.valueOf(document.get(ID_FIELD)), readRevision(document));
+    }
+
+    /**
+     * Changes with every update, and also when a deleted document is created again.
+     */
+    public String version() {
+        return "%s.%d".formatted(documentId, revision);
+    }
+}
@@ -0,0 +1,82 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.planning.repository.BalanceSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Persisted balances by username, read through from the database and written through by balance updates on this replica.
+ * Updates from other replicas invalidate entries through {@link PlanningChangeStreams}; the TTL bounds staleness
+ * when change streams are not available. Cached balances are shared, so they must not be modified.
+ */
+@Slf4j
+@Service
+public class BalanceCache {
+
+    private final BalanceSearchRepository balanceSearchRepository;
+    private final AsyncCache<String, Revised<Balance>> balancesByUsername;
+
+    public BalanceCache(final BalanceSearchRepository balanceSearchRepository,
+                        final MeterRegistry meterRegistry,
+                        @Value("${custom-properties.balance-cache.max-size:10000}") final long maxSize,
+                        @Value("${custom-properties.balance-cache.ttl:30s}") final Duration ttl) {
+        this.balanceSearchRepository = balanceSearchRepository;
+        this.balancesByUsername = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, balancesByUsername, "balances");
+    }
+
+    /**
+     * Completes empty if the user has no balance. Missing balances are not cached.
+     */
+    public Mono<Revised<Balance>> findBalance(final String username) {
+        return Mono.fromFuture(() -> balancesByUsername.get(username, (key, executor) ->
+                balanceSearchRepository.findBalance(key).toFuture()));
+    }
+
+    /**
+     * Replaces the entry, also when it is being loaded, so a load started before the update cannot overwrite it.
+     */
+    public void put(final Revised<Balance> balance) {
+        balancesByUsername.put(balance.entity().getUsername(), CompletableFuture.completedFuture(balance));
+    }
+
+    public void invalidateAll(final Collection<String> usernames) {
+        balancesByUsername.synchronous().invalidateAll(usernames);
+        log.debug("Cached balances of {} users invalidated.", usernames.size());
+    }
+
+    /**
+     * Keeps the entry only if it is already of the changed version or a later one, which is the case for updates written
+     * through on this replica. Otherwise the entry is invalidated, as changes may arrive out of order with local writes.
+     */
+    public void onBalanceChanged(final Revised<Balance> changedBalance) {
+        final String username = changedBalance.entity().getUsername();
+        final CompletableFuture<Revised<Balance>> cachedBalanceFuture = balancesByUsername.getIfPresent(username);
+        final Revised<Balance> cachedBalance = nonNull(cachedBalanceFuture) && cachedBalanceFuture.isDone() && !cachedBalanceFuture.isCompletedExceptionally() ?
+                cachedBalanceFuture.join() :
+                null;
+        if (nonNull(cachedBalance) && cachedBalance.documentId().equals(changedBalance.documentId())
+                && cachedBalance.revision() >= changedBalance.revision()) {
+            return;
+        }
+        balancesByUsername.synchronous().invalidate(username);
+    }
+}
@@ -1,6 +1,7 @@
 package pl.com.seremak.simplebills.planning.service;
 
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -10,9 +11,21 @@ import pl.com.seremak.simplebills.commons.model.Balance;
 import pl.com.seremak.simplebills.commons.utils.TransactionBalanceUtils;
 import pl.com.seremak.simplebills.commons.utils.VersionedEntityUtils;
 import pl.com.seremak.simplebills.planning.repository.BalanceRepository;
+import pl.com.seremak.simplebills.planning.repository.BalanceSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import pl.com.seremak.simplebills.planning.utils.ETagHelper.ETagged;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareETag;
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedMono;
 
 @Slf4j
 @Service
@@ -20,32 +33,81 @@ import java.math.BigDecimal;
 public class BalanceService {
 
     private final BalanceRepository balanceRepository;
+    private final BalanceSearchRepository balanceSearchRepository;
+    private final WriteBehindDeltaAggregator writeBehindDeltaAggregator;
+    private final BalanceCache balanceCache;
+    private final MeterRegistry meterRegistry;
 
     public Mono<Balance> findBalance(final String username) {
-        return balanceRepository.findBalanceByUsername(username)
-                .switchIfEmpty(Mono.error(new NotFoundException()));
+        return findRevisedBalance(username)
+                .map(Revised::entity);
+    }
+
+    /**
+     * The ETag is derived from the version of the persisted balance and from the returned value, which differs from
+     * the persisted one by the delta not flushed yet in write-behind mode.
+     */
+    public Mono<ETagged<Balance>> findBalanceWithETag(final String username) {
+        return findRevisedBalance(username)
+                .map(revisedBalance -> new ETagged<>(revisedBalance.entity(),
+                        prepareETag(revisedBalance.version(), revisedBalance.entity().getBalance())));
     }
 
-    public Mono<Balance> updateBalance(final TransactionEventDto transactionEventDto) {
-        return balanceRepository.findBalanceByUsername(transactionEventDto.getUsername())
-                .defaultIfEmpty(prepareNewBalanceForUser(transactionEventDto.getUsername()))
-                .map(existingBalance -> updateBalance(existingBalance, transactionEventDto))
-                .flatMap(balanceRepository::save)
-                .doOnSuccess(updatedBalance -> log.info("Balance for username={} has been updated", transactionEventDto.getAmount()));
+    /**
+     * Returns the balance including unflushed delta, with the revision of the persisted balance, which is zero
+     * if the balance has not been persisted yet.
+     */
+    public Mono<Revised<Balance>> findRevisedBalance(final String username) {
+        return balanceCache.findBalance(username)
+                .map(revisedBalance -> mergeUnflushedDelta(revisedBalance, writeBehindDeltaAggregator.findUnflushedBalanceDelta(username)))
+                .switchIfEmpty(Mono.defer(() -> Mono.justOrEmpty(writeBehindDeltaAggregator.findUnflushedBalanceDelta(username))
+                        .map(unflushedDelta -> new Revised<>(VersionedEntityUtils.setMetadata(new Balance(username, unflushedDelta)), username, 0L))))
+                .switchIfEmpty(Mono.error(new NotFoundException()))
+                .transform(timedMono(meterRegistry, BalanceService.class, "findBalance"));
     }
 
+    public Mono<Revised<Balance>> updateBalance(final TransactionEventDto transactionEventDto) {
+        final BigDecimal balanceDelta = TransactionBalanceUtils.updateBalance(BigDecimal.ZERO, transactionEventDto);
+        return balanceSearchRepository.incrementBalance(transactionEventDto.getUsername(), balanceDelta)
+                .doOnNext(balanceCache::put)
+                .doOnSuccess(updatedBalance -> log.info("Balance for username={} has been updated", transactionEventDto.getUsername()))
+                .transform(timedMono(meterRegistry, BalanceService.class, "updateBalance"));
+    }
+
+    /**
+     * Saved balance is not cached, as its version is known only to the database.
+     */
     public Mono<Balance> createNewClearBalance(final String username) {
         final Balance newBalance = prepareNewBalanceForUser(username);
-        return balanceRepository.save(newBalance);
+        return balanceRepository.save(newBalance)
+                .doOnNext(balance -> balanceCache.invalidateAll(List.of(username)));
+    }
+
+    /**
+     * Creates zero balances with one bulk upsert. Existing balances are not modified.
+     */
+    public Mono<Void> createClearBalancesIfNotExist(final Collection<String> usernames) {
+        final Map<String, BigDecimal> zeroDeltas = usernames.stream()
+                .collect(Collectors.toMap(Function.identity(), __ -> BigDecimal.ZERO, (first, second) -> first));
+        return balanceSearchRepository.incrementBalances(zeroDeltas)
+                .then()
+                .transform(timedMono(meterRegistry, BalanceService.class, "createClearBalancesIfNotExist"));
     }
 
     private static Balance prepareNewBalanceForUser(final String username) {
         return VersionedEntityUtils.setMetadata(new Balance(username, BigDecimal.ZERO));
     }
 
-    private static Balance updateBalance(final Balance balance, final TransactionEventDto transactionEventDto) {
-        final BigDecimal updatedBalanceAmount = TransactionBalanceUtils.updateBalance(balance.getBalance(), transactionEventDto);
-        balance.setBalance(updatedBalanceAmount);
-        return (Balance) VersionedEntityUtils.updateMetadata(balance);
+    /**
+     * Given balance may be cached, so a new one is created.
+     */
+    private static Revised<Balance> mergeUnflushedDelta(final Revised<Balance> revisedBalance, final Optional<BigDecimal> unflushedDelta) {
+        final Balance balance = revisedBalance.entity();
+        return unflushedDelta
+                .map(delta -> new Revised<>(
+                        VersionedEntityUtils.setMetadata(new Balance(balance.getUsername(), balance.getBalance().add(delta))),
+                        revisedBalance.documentId(),
+                        revisedBalance.revision()))
+                .orElse(revisedBalance);
     }
 }
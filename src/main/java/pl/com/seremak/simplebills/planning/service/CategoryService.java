@@ -1,6 +1,7 @@
 package pl.com.seremak.simplebills.planning.service;
 
 import com.mongodb.lang.Nullable;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -9,13 +10,14 @@ import pl.com.seremak.simplebills.commons.exceptions.ConflictException;
 import pl.com.seremak.simplebills.commons.model.Category;
 import pl.com.seremak.simplebills.commons.utils.CollectionUtils;
 import pl.com.seremak.simplebills.commons.utils.VersionedEntityUtils;
-import pl.com.seremak.simplebills.planning.messageQueue.MessagePublisher;
+import pl.com.seremak.simplebills.planning.config.MongoTransactionSupport;
 import pl.com.seremak.simplebills.planning.repository.CategoryRepository;
 import pl.com.seremak.simplebills.planning.repository.CategorySearchRepository;
+import pl.com.seremak.simplebills.planning.utils.ETagHelper.ETagged;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -28,7 +30,9 @@ import static pl.com.seremak.simplebills.commons.model.Category.TransactionType.
 import static pl.com.seremak.simplebills.commons.model.Category.TransactionType.INCOME;
 import static pl.com.seremak.simplebills.commons.utils.CollectionUtils.getSoleElementOrThrowException;
 import static pl.com.seremak.simplebills.commons.utils.CollectionUtils.mergeLists;
-import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.MASTER_USER;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareETag;
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedFlux;
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedMono;
 
 @Slf4j
 @Service
@@ -37,15 +41,21 @@ public class CategoryService {
 
     public static final String CATEGORY_ALREADY_EXISTS_ERROR_MSG = "Category with name %s for user with name %s already exists";
     public static final String UNDEFINED = "undefined";
+    public static final int MAX_CATEGORIES_PAGE_SIZE = 500;
     private final CategoryRepository categoryRepository;
     private final CategoryUsageLimitService categoryUsageLimitService;
     private final CategorySearchRepository categorySearchRepository;
-    private final MessagePublisher messagePublisher;
+    private final OutboxService outboxService;
+    private final MongoTransactionSupport mongoTransactionSupport;
+    private final UserCategoriesCache userCategoriesCache;
+    private final StandardCategoriesTemplate standardCategoriesTemplate;
+    private final MeterRegistry meterRegistry;
 
 
     public Mono<Category> createCustomCategory(final String username, final CategoryDto categoryDto) {
         final Category category = toCategory(username, categoryDto, Category.Type.CUSTOM);
-        return createCategory(category);
+        return createCategory(category)
+                .transform(timedMono(meterRegistry, CategoryService.class, "createCustomCategory"));
     }
 
     public Mono<Category> createCustomCategory(final CategoryDto categoryDto) {
@@ -53,49 +63,117 @@ public class CategoryService {
     }
 
     public Flux<Category> createAllCategories(final Set<Category> categories) {
-        return categoryRepository.saveAll(categories);
+        return categoryRepository.saveAll(categories)
+                .doOnComplete(() -> categories.stream()
+                        .map(Category::getUsername)
+                        .distinct()
+                        .forEach(userCategoriesCache::invalidate));
     }
 
     public Mono<List<Category>> findAllCategories(final String username) {
-        return categoryRepository.findCategoriesByUsername(username)
-                .collectList();
+        return userCategoriesCache.findCategories(username)
+                .transform(timedMono(meterRegistry, CategoryService.class, "findAllCategories"));
+    }
+
+    public Mono<UserCategoriesCache.UserCategories> findAllCategoriesWithETag(final String username) {
+        return userCategoriesCache.findUserCategories(username)
+                .transform(timedMono(meterRegistry, CategoryService.class, "findAllCategoriesWithETag"));
+    }
+
+    /**
+     * Streams categories straight from the database, so the whole list is never held in memory.
+     */
+    public Flux<Category> streamAllCategories(final String username) {
+        return categorySearchRepository.findCategoriesOrderedByName(username)
+                .transform(timedFlux(meterRegistry, CategoryService.class, "streamAllCategories"));
+    }
+
+    /**
+     * Returns up to limit categories with names after the given one. Name of the last returned category is the cursor
+     * of the next page.
+     */
+    public Flux<Category> findCategoriesPage(final String username, @Nullable final String afterCategoryName, final int limit) {
+        final int pageSize = Math.max(1, Math.min(limit, MAX_CATEGORIES_PAGE_SIZE));
+        return categorySearchRepository.findCategoriesPage(username, afterCategoryName, pageSize)
+                .transform(timedFlux(meterRegistry, CategoryService.class, "findCategoriesPage"));
     }
 
     public Mono<Category> findCategory(final String username, final String categoryName) {
-        return categoryRepository.findCategoriesByUsernameAndName(username, categoryName)
+        return userCategoriesCache.findCategoriesByName(username, categoryName)
                 .collectList()
                 .map(CollectionUtils::getSoleElementOrThrowException);
     }
 
+    /**
+     * The ETag is derived from the version of the category document.
+     */
+    public Mono<ETagged<Category>> findCategoryWithETag(final String username, final String categoryName) {
+        return userCategoriesCache.findUserCategories(username)
+                .map(userCategories -> new ETagged<>(
+                        getSoleElementOrThrowException(userCategories.categories().stream()
+                                .filter(category -> categoryName.equals(category.getName()))
+                                .toList()),
+                        prepareETag(userCategories.versionsByName().get(categoryName))));
+    }
+
     public Mono<Category> updateCategory(final String username, final String categoryName, final CategoryDto categoryDto) {
         final Category categoryToUpdate = toCategory(username, categoryName, categoryDto);
         return categorySearchRepository.updateCategory(categoryToUpdate)
-                .doOnSuccess(this::updateCategoryUsageLimit);
+                .doOnSuccess(__ -> userCategoriesCache.invalidate(username))
+                .doOnSuccess(this::updateCategoryUsageLimit)
+                .transform(timedMono(meterRegistry, CategoryService.class, "updateCategory"));
     }
 
+    /**
+     * The replacement category is ensured first. Then the category is deleted and the deletion event, which makes
+     * transactions reassigned, is saved to the outbox in one transaction, if the server supports transactions.
+     */
     public Mono<Category> deleteCategory(final String username,
                                          final String categoryName,
                                          @Nullable final String incomingReplacementCategory) {
-        return categoryRepository.deleteCategoryByUsernameAndName(username, categoryName)
-                .publishOn(Schedulers.boundedElastic())
-                .doOnSuccess(category -> reassignTransactionOfDeletedCategory(category, incomingReplacementCategory)
-                        .then(categoryUsageLimitService.deleteCategoryUsageLimit(username, categoryName))
-                        .subscribe());
+        return userCategoriesCache.findCategoriesByName(username, categoryName)
+                .next()
+                .flatMap(category -> findOrCreateReplacementCategory(category, incomingReplacementCategory))
+                .flatMap(replacementCategoryName -> categoryRepository.deleteCategoryByUsernameAndName(username, categoryName)
+                        .flatMap(deletedCategory -> outboxService.saveCategoryEvent(toCategoryDeletionEventDto(deletedCategory, replacementCategoryName))
+                                .thenReturn(deletedCategory))
+                        .as(mongoTransactionSupport::transactional))
+                .doOnSuccess(__ -> userCategoriesCache.invalidate(username))
+                .flatMap(deletedCategory -> categoryUsageLimitService.deleteCategoryUsageLimit(username, categoryName)
+                        .thenReturn(deletedCategory))
+                .transform(timedMono(meterRegistry, CategoryService.class, "deleteCategory"));
     }
 
     public Mono<List<Category>> createStandardCategoriesForUserIfNotExists(final String username) {
         log.info("Looking for missing standard categories...");
         return findStandardCategoriesForUser(username)
                 .collectList()
-                .flatMap(userStandardCategories -> findStandardCategoriesForUser(MASTER_USER)
-                        .collectList()
+                .flatMap(userStandardCategories -> standardCategoriesTemplate.findStandardCategories()
                         .map(masterUserStandardCategories ->
                                 findAllMissingCategories(username, userStandardCategories, masterUserStandardCategories)))
                 .flatMapMany(categoryRepository::saveAll)
                 .collectList()
+                .doOnSuccess(__ -> userCategoriesCache.invalidate(username))
                 .doOnSuccess(CategoryService::logMissingCategoryAddingSummary);
     }
 
+    /**
+     * Bulk variant for onboarding many users: one query for their standard categories and one insertMany for the missing ones.
+     */
+    public Mono<List<Category>> createStandardCategoriesForUsersIfNotExist(final Collection<String> usernames) {
+        return categoryRepository.findCategoriesByUsernameInAndType(usernames, Category.Type.STANDARD)
+                .collectMultimap(Category::getUsername)
+                .zipWith(standardCategoriesTemplate.findStandardCategories())
+                .map(userCategoriesAndTemplate -> usernames.stream()
+                        .flatMap(username -> findAllMissingCategories(username,
+                                List.copyOf(userCategoriesAndTemplate.getT1().getOrDefault(username, List.of())),
+                                userCategoriesAndTemplate.getT2()).stream())
+                        .collect(Collectors.toSet()))
+                .flatMapMany(this::createAllCategories)
+                .collectList()
+                .transform(timedMono(meterRegistry, CategoryService.class, "createStandardCategoriesForUsersIfNotExist"));
+    }
+
     public Flux<Category> findStandardCategoriesForUser(final String username) {
         return categoryRepository.findCategoriesByUsernameAndType(username, Category.Type.STANDARD);
     }
@@ -111,24 +189,18 @@ public class CategoryService {
     }
 
     private Mono<Category> createCategory(final Category category) {
-        return categoryRepository.findCategoriesByUsernameAndName(category.getUsername(), category.getName())
+        return userCategoriesCache.findCategoriesByName(category.getUsername(), category.getName())
                 .collectList()
                 .mapNotNull(existingCategories -> existingCategories.isEmpty() ? category : null)
                 .map(VersionedEntityUtils::setMetadata)
                 .map(categoryRepository::save)
                 .flatMap(mono -> mono)
+                .doOnNext(createdCategory -> userCategoriesCache.invalidate(createdCategory.getUsername()))
                 .doOnSuccess(this::createNewCategoryUsageLimit)
                 .switchIfEmpty(Mono.error(new ConflictException(CATEGORY_ALREADY_EXISTS_ERROR_MSG.formatted(category.getUsername(), category.getName()))));
     }
 
 
-    private Mono<String> reassignTransactionOfDeletedCategory(final Category deletedCategory,
-                                                              @Nullable final String replacementCategoryName) {
-        return findOrCreateReplacementCategory(deletedCategory, replacementCategoryName)
-                .doOnNext(existingReplacementCategoryName ->
-                        messagePublisher.sendCategoryEventMessage(toCategoryDeletionEventDto(deletedCategory, existingReplacementCategoryName)));
-    }
-
     private static Set<Category> findAllMissingCategories(final String username,
                                                           final List<Category> userStandardCategories,
                                                           final List<Category> masterUserStandardCategories) {
@@ -160,7 +232,7 @@ public class CategoryService {
 
     private void updateCategoryUsageLimit(final Category category) {
         if (nonNull(category)) {
-            categoryUsageLimitService.updateCategoryUsageLimit(category.getUsername(), category.getName(), category.getLimit())
+            categoryUsageLimitService.updateCategoryUsageLimit(category)
                     .subscribe();
         }
     }
@@ -175,7 +247,7 @@ public class CategoryService {
                                                          final String replacementCategoryName) {
         final String finalReplacementCategoryName = defaultIfNull(replacementCategoryName, UNDEFINED);
         final Category.Type categoryType = isNull(replacementCategoryName) ? Category.Type.UNDEFINED : deletedCategory.getType();
-        return categoryRepository.findCategoriesByUsernameAndName(deletedCategory.getUsername(), finalReplacementCategoryName)
+        return userCategoriesCache.findCategoriesByName(deletedCategory.getUsername(), finalReplacementCategoryName)
                 .collectList()
                 .mapNotNull(existingCategoryList -> getSoleElementOrThrowException(existingCategoryList, false))
                 .map(Category::getName)
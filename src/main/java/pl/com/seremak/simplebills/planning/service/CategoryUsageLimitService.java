@@ -1,8 +1,8 @@
 package pl.com.seremak.simplebills.planning.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.util.Pair;
 import org.springframework.stereotype.Service;
 import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
 import pl.com.seremak.simplebills.commons.model.Category;
@@ -10,14 +10,16 @@ import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
 import pl.com.seremak.simplebills.commons.utils.CollectionUtils;
 import pl.com.seremak.simplebills.commons.utils.DateUtils;
 import pl.com.seremak.simplebills.commons.utils.VersionedEntityUtils;
-import pl.com.seremak.simplebills.planning.repository.CategoryRepository;
 import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitRepository;
 import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import pl.com.seremak.simplebills.planning.utils.ETagHelper.ETagged;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 import java.time.YearMonth;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -28,6 +30,10 @@ import static pl.com.seremak.simplebills.commons.converter.CategoryUsageLimitCon
 import static pl.com.seremak.simplebills.commons.model.Category.TransactionType.EXPENSE;
 import static pl.com.seremak.simplebills.commons.utils.DateUtils.toYearMonthString;
 import static pl.com.seremak.simplebills.commons.utils.TransactionBalanceUtils.updateCategoryUsage;
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.TOTAL_CATEGORY_NAME;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareCollectionETag;
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedFlux;
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedMono;
 
 @Slf4j
 @Service
@@ -36,43 +42,94 @@ public class CategoryUsageLimitService {
 
     private final CategoryUsageLimitRepository categoryUsageLimitRepository;
     private final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository;
-    private final CategoryRepository categoryRepository;
+    private final UserCategoriesCache userCategoriesCache;
+    private final MeterRegistry meterRegistry;
 
 
-    public Mono<List<CategoryUsageLimit>> findAllCategoryUsageLimits(final String username, final String yearMonth, final boolean total) {
+    /**
+     * Returns CategoryUsageLimits with non-zero usage. Filtering and the total are computed by the database.
+     * The ETag is derived from versions of the documents the usages are read from.
+     */
+    public Mono<ETagged<List<CategoryUsageLimit>>> findAllCategoryUsageLimits(final String username, final String yearMonth, final boolean total) {
         final String yearMonthToSearch = defaultIfNull(yearMonth, toYearMonthString(Instant.now()).orElseThrow());
-        final Mono<List<CategoryUsageLimit>> categoriesUsageLimitsMono =
-                categoryUsageLimitRepository.findByUsernameAndYearMonth(username, yearMonthToSearch)
-                        .filter(categoryUsageLimit -> nonNull(categoryUsageLimit.getUsage())
-                                && !categoryUsageLimit.getUsage().equals(ZERO))
-                        .collectList();
-        return total ?
-                categoriesUsageLimitsMono.map(CategoryUsageLimitService::extractTotalUsageLimit) :
-                categoriesUsageLimitsMono;
+        final Mono<ETagged<List<CategoryUsageLimit>>> categoryUsageLimits = total ?
+                categoryUsageLimitSearchRepository.findTotalCategoryUsageLimit(username, yearMonthToSearch)
+                        .map(totalUsageLimit -> new ETagged<>(List.of(totalUsageLimit.total()), prepareCollectionETag(totalUsageLimit.versions())))
+                        .defaultIfEmpty(new ETagged<>(List.of(), prepareCollectionETag(List.of()))) :
+                categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(username, yearMonthToSearch)
+                        .collectList()
+                        .map(CategoryUsageLimitService::toETaggedUsageLimits);
+        return categoryUsageLimits
+                .transform(timedMono(meterRegistry, CategoryUsageLimitService.class, "findAllCategoryUsageLimits"));
     }
 
-    public Mono<CategoryUsageLimit> updateCategoryUsageLimitAfterNewTransaction(final TransactionEventDto transactionEventDto) {
-        final String yearMonth = getTransactionYearMonthOrSetCurrentIfNotExists(transactionEventDto);
-        return categoryUsageLimitRepository.findByUsernameAndCategoryNameAndYearMonth(transactionEventDto.getUsername(),
-                        transactionEventDto.getCategoryName(), yearMonth)
-                .switchIfEmpty(createNewCategoryUsageLimit(transactionEventDto))
-                .flatMap(categoryUsageLimit -> updateCategoryUsageLimitAfterNewTransaction(categoryUsageLimit, transactionEventDto))
+    /**
+     * Streams CategoryUsageLimits with non-zero usage for months from the range, optionally of one category.
+     * Each month is followed by its "total" CategoryUsageLimit. Only the total of the current month is kept in memory.
+     */
+    public Flux<CategoryUsageLimit> findCategoryUsageLimitsInRange(final String username,
+                                                                   final YearMonth fromYearMonth,
+                                                                   final YearMonth toYearMonth,
+                                                                   final String categoryName) {
+        return categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(username, fromYearMonth.toString(),
+                        toYearMonth.toString(), categoryName)
+                .windowUntilChanged(CategoryUsageLimit::getYearMonth)
+                .concatMap(CategoryUsageLimitService::appendMonthTotal)
+                .transform(timedFlux(meterRegistry, CategoryUsageLimitService.class, "findCategoryUsageLimitsInRange"));
+    }
+
+    public Mono<Revised<CategoryUsageLimit>> updateCategoryUsageLimitAfterNewTransaction(final TransactionEventDto transactionEventDto) {
+        final CategoryUsageLimit usageDelta = CategoryUsageLimit.builder()
+                .username(transactionEventDto.getUsername())
+                .categoryName(transactionEventDto.getCategoryName())
+                .yearMonth(getTransactionYearMonthOrSetCurrentIfNotExists(transactionEventDto))
+                .usage(updateCategoryUsage(ZERO, transactionEventDto))
+                .build();
+        return categoryUsageLimitSearchRepository.incrementUsage(usageDelta)
+                .switchIfEmpty(Mono.defer(() -> createCategoryUsageLimitWithUsage(usageDelta)))
                 .doOnNext(updatedCategoryUsageLimit ->
-                        log.info("Usage limit for category={} updated.", updatedCategoryUsageLimit.getCategoryName()));
+                        log.info("Usage limit for category={} updated.", usageDelta.getCategoryName()))
+                .transform(timedMono(meterRegistry, CategoryUsageLimitService.class, "updateCategoryUsageLimitAfterNewTransaction"));
     }
 
-    public Mono<CategoryUsageLimit> updateCategoryUsageLimit(final String username, final String categoryName, final BigDecimal newLimit) {
-        return categoryUsageLimitRepository.findByUsernameAndCategoryNameAndYearMonth(username,
-                        categoryName, YearMonth.now().toString())
-                .switchIfEmpty(createNewCategoryUsageLimit(username, categoryName))
-                .flatMap(categoryUsageLimit -> updateCategoryUsageLimit(categoryUsageLimit, newLimit))
-                .doOnSuccess(updatedCategoryUsageLimit ->
-                        log.info("Usage limit for category={} updated.", updatedCategoryUsageLimit.getCategoryName()));
+    /**
+     * Sets the limit of the current month with a single upsert, without reading the CategoryUsageLimit first,
+     * so usage incremented concurrently is not overwritten. Months already created ahead by the month rollover
+     * get the new limit too.
+     */
+    public Mono<CategoryUsageLimit> updateCategoryUsageLimit(final Category category) {
+        if (!isCategoryUsageLimitApplicable(category)) {
+            return Mono.empty();
+        }
+        final String currentYearMonth = YearMonth.now().toString();
+        final CategoryUsageLimit categoryUsageLimit = CategoryUsageLimit.builder()
+                .username(category.getUsername())
+                .categoryName(category.getName())
+                .yearMonth(currentYearMonth)
+                .limit(category.getLimit())
+                .build();
+        return categoryUsageLimitSearchRepository.upsertLimit(categoryUsageLimit)
+                .map(Revised::entity)
+                .flatMap(updatedCategoryUsageLimit -> categoryUsageLimitSearchRepository
+                        .updateLimitAfter(category.getUsername(), category.getName(), currentYearMonth, category.getLimit())
+                        .thenReturn(updatedCategoryUsageLimit))
+                .doOnNext(updatedCategoryUsageLimit ->
+                        log.info("Usage limit for category={} updated.", updatedCategoryUsageLimit.getCategoryName()))
+                .transform(timedMono(meterRegistry, CategoryUsageLimitService.class, "updateCategoryUsageLimit"));
     }
 
-    private Mono<CategoryUsageLimit> createNewCategoryUsageLimit(final TransactionEventDto transactionEventDto) {
-        return getLimitForNewCategoryUsageLimit(transactionEventDto.getUsername(), transactionEventDto.getCategoryName())
-                .flatMap(category -> createCategoryUsageLimitForExpense(category, transactionEventDto.getDate()));
+    /**
+     * Slow path taken only for the first transaction of the month, so the category is looked up only here. The upsert
+     * keeps it safe when parallel transactions create the same CategoryUsageLimit.
+     */
+    private Mono<Revised<CategoryUsageLimit>> createCategoryUsageLimitWithUsage(final CategoryUsageLimit usageDelta) {
+        return getLimitForNewCategoryUsageLimit(usageDelta.getUsername(), usageDelta.getCategoryName())
+                .filter(CategoryUsageLimitService::isCategoryUsageLimitApplicable)
+                .map(existingCategory -> {
+                    usageDelta.setLimit(existingCategory.getLimit());
+                    return usageDelta;
+                })
+                .flatMap(categoryUsageLimitSearchRepository::upsertUsage);
     }
 
     public Mono<CategoryUsageLimit> createNewCategoryUsageLimit(final String username, final String categoryName) {
@@ -80,18 +137,36 @@ public class CategoryUsageLimitService {
                 .flatMap(category -> createCategoryUsageLimitForExpense(category, Instant.now()));
     }
 
+    /**
+     * Creates CategoryUsageLimits of the current month for given categories with one insert. Already existing ones
+     * are skipped without being modified, so their revisions stay the same when a user is set up again.
+     */
+    public Mono<Void> createCategoryUsageLimits(final Collection<Category> categories) {
+        final String currentYearMonth = YearMonth.now().toString();
+        final List<CategoryUsageLimit> newCategoryUsageLimits = categories.stream()
+                .filter(CategoryUsageLimitService::isCategoryUsageLimitApplicable)
+                .map(category -> CategoryUsageLimit.builder()
+                        .username(category.getUsername())
+                        .categoryName(category.getName())
+                        .yearMonth(currentYearMonth)
+                        .limit(category.getLimit())
+                        .usage(ZERO)
+                        .build())
+                .toList();
+        return categoryUsageLimitSearchRepository.insertAllIfNotExist(newCategoryUsageLimits)
+                .doOnNext(insertedCount -> log.info("{} of {} CategoryUsageLimits created.", insertedCount, newCategoryUsageLimits.size()))
+                .then()
+                .transform(timedMono(meterRegistry, CategoryUsageLimitService.class, "createCategoryUsageLimits"));
+    }
+
     public Mono<CategoryUsageLimit> deleteCategoryUsageLimit(final String username, final String categoryName) {
         return categoryUsageLimitRepository.deleteByUsernameAndCategoryName(username, categoryName)
-                .doOnNext(deletedCategoryUsageLimit -> log.info("CategoryUsageLimit for category={} deleted", deletedCategoryUsageLimit.getCategoryName()));
+                .doOnNext(deletedCategoryUsageLimit -> log.info("CategoryUsageLimit for category={} deleted", deletedCategoryUsageLimit.getCategoryName()))
+                .transform(timedMono(meterRegistry, CategoryUsageLimitService.class, "deleteCategoryUsageLimit"));
     }
 
     private Mono<CategoryUsageLimit> createCategoryUsageLimitForExpense(final Category category, final Instant transactionYearMonth) {
-        if (!EXPENSE.equals(category.getTransactionType())) {
-            log.info("New CategoryUsageLimit will not be created for transactionType={}", category.getTransactionType());
-            return Mono.empty();
-        }
-        if (Category.Type.UNDEFINED.equals(category.getType())) {
-            log.info("New CategoryUsageLimit will not be created for STANDARD category with name={}", category.getName());
+        if (!isCategoryUsageLimitApplicable(category)) {
             return Mono.empty();
         }
         return Mono.just(categoryUsageLimitOf(category, transactionYearMonth))
@@ -100,44 +175,48 @@ public class CategoryUsageLimitService {
                 .doOnNext(createdCategoryUsageLimit -> log.info("CategoryUsageLimit for categoryName={} created", createdCategoryUsageLimit.getCategoryName()));
     }
 
+    static boolean isCategoryUsageLimitApplicable(final Category category) {
+        if (!EXPENSE.equals(category.getTransactionType())) {
+            log.info("CategoryUsageLimit is not tracked for transactionType={}", category.getTransactionType());
+            return false;
+        }
+        if (Category.Type.UNDEFINED.equals(category.getType())) {
+            log.info("CategoryUsageLimit is not tracked for UNDEFINED category with name={}", category.getName());
+            return false;
+        }
+        return true;
+    }
+
     private Mono<Category> getLimitForNewCategoryUsageLimit(final String username, final String categoryName) {
-        return categoryRepository.findCategoriesByUsernameAndName(username, categoryName)
+        return userCategoriesCache.findCategoriesByName(username, categoryName)
                 .collectList()
                 .map(CollectionUtils::getSoleElementOrThrowException);
     }
 
-    private Mono<CategoryUsageLimit> updateCategoryUsageLimitAfterNewTransaction(final CategoryUsageLimit categoryUsageLimit,
-                                                                                 final TransactionEventDto transactionEventDto) {
-        final BigDecimal updatedLimitUsage = updateCategoryUsage(categoryUsageLimit.getUsage(), transactionEventDto);
-        categoryUsageLimit.setUsage(updatedLimitUsage);
-        return categoryUsageLimitSearchRepository.updateCategoryUsageLimit(categoryUsageLimit);
-    }
-
-    private Mono<CategoryUsageLimit> updateCategoryUsageLimit(final CategoryUsageLimit categoryUsageLimit, final BigDecimal newLimit) {
-        categoryUsageLimit.setLimit(newLimit);
-        return categoryUsageLimitSearchRepository.updateCategoryUsageLimit(categoryUsageLimit);
+    private static ETagged<List<CategoryUsageLimit>> toETaggedUsageLimits(final List<Revised<CategoryUsageLimit>> revisedUsageLimits) {
+        return new ETagged<>(
+                revisedUsageLimits.stream().map(Revised::entity).toList(),
+                prepareCollectionETag(revisedUsageLimits.stream().map(Revised::version).toList()));
     }
 
-    private static List<CategoryUsageLimit> extractTotalUsageLimit(final List<CategoryUsageLimit> categoryUsageLimits) {
-        final Optional<Pair<BigDecimal, BigDecimal>> totalUsageAndLimitOpt = categoryUsageLimits.stream()
-                .map(categoryUsageLimit -> Pair.of(defaultIfNull(categoryUsageLimit.getUsage(), ZERO), defaultIfNull(categoryUsageLimit.getLimit(), ZERO)))
-                .reduce((usageAndLimit1, usageAndLimit2) ->
-                        Pair.of(usageAndLimit1.getFirst().add(usageAndLimit2.getFirst()), usageAndLimit1.getSecond().add(usageAndLimit2.getSecond())));
-        final Optional<CategoryUsageLimit> totalOpt = categoryUsageLimits.stream().findFirst()
-                .flatMap(category -> totalUsageAndLimitOpt
-                        .map(totalUsageAndLimit -> CategoryUsageLimit.builder()
-                                .username(category.getUsername())
-                                .categoryName("total")
-                                .usage(totalUsageAndLimit.getFirst())
-                                .limit(totalUsageAndLimit.getSecond())
-                                .yearMonth(category.getYearMonth())
-                                .build()));
-        return totalOpt
-                .map(List::of)
-                .orElse(List.of());
+    static Flux<CategoryUsageLimit> appendMonthTotal(final Flux<CategoryUsageLimit> monthCategoryUsageLimits) {
+        final CategoryUsageLimit monthTotal = CategoryUsageLimit.builder()
+                .categoryName(TOTAL_CATEGORY_NAME)
+                .usage(ZERO)
+                .limit(ZERO)
+                .build();
+        return monthCategoryUsageLimits
+                .doOnNext(categoryUsageLimit -> {
+                    monthTotal.setUsername(categoryUsageLimit.getUsername());
+                    monthTotal.setYearMonth(categoryUsageLimit.getYearMonth());
+                    monthTotal.setUsage(monthTotal.getUsage().add(categoryUsageLimit.getUsage()));
+                    monthTotal.setLimit(monthTotal.getLimit().add(defaultIfNull(categoryUsageLimit.getLimit(), ZERO)));
+                })
+                .concatWith(Mono.fromSupplier(() -> monthTotal)
+                        .filter(total -> nonNull(total.getYearMonth())));
     }
 
-    private static String getTransactionYearMonthOrSetCurrentIfNotExists(final TransactionEventDto transactionEventDto) {
+    static String getTransactionYearMonthOrSetCurrentIfNotExists(final TransactionEventDto transactionEventDto) {
         return Optional.ofNullable(transactionEventDto)
                 .map(TransactionEventDto::getDate)
                 .flatMap(DateUtils::toYearMonthString)
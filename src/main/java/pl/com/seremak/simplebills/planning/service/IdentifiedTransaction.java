@@ -0,0 +1,10 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+
+/**
+ * Transaction with the identity assigned by its producer, e.g. AMQP message id, used to recognize redeliveries.
+ * Null transactionId means the transaction cannot be deduplicated.
+ */
+public record IdentifiedTransaction(String transactionId, TransactionEventDto transaction) {
+}
@@ -0,0 +1,135 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Pushes balance and CategoryUsageLimit updates to connected users. Each user with open connections has a multicast
+ * sink, which is removed with the last connection, so users without connections cost nothing. Updates posted on this
+ * replica are pushed at once, and those posted in batches are read back after the bulk write. Updates from other
+ * replicas come from {@link PlanningChangeStreams}, so they may arrive out of order. An update of a revision older
+ * than the one already pushed is dropped, and so is an update with the value already pushed. A subscriber which does
+ * not keep up loses its oldest buffered updates.
+ */
+@Slf4j
+@Service
+public class LiveUpdatesService {
+
+    public static final String BALANCE_EVENT = "balance";
+    public static final String CATEGORY_USAGE_LIMIT_EVENT = "category-usage-limit";
+    private static final String HEARTBEAT_COMMENT = "heartbeat";
+
+    private final Duration heartbeatInterval;
+    private final int subscriberBufferSize;
+    private final Map<String, UserUpdates> updatesByUsername = new ConcurrentHashMap<>();
+
+    public LiveUpdatesService(@Value("${custom-properties.live-updates.heartbeat-interval:15s}") final Duration heartbeatInterval,
+                              @Value("${custom-properties.live-updates.subscriber-buffer-size:32}") final int subscriberBufferSize) {
+        this.heartbeatInterval = heartbeatInterval;
+        this.subscriberBufferSize = subscriberBufferSize;
+    }
+
+    public Flux<ServerSentEvent<Object>> subscribe(final String username) {
+        return Flux.defer(() -> {
+            final UserUpdates userUpdates = updatesByUsername.compute(username, (__, existingUpdates) ->
+                    (isNull(existingUpdates) ? new UserUpdates() : existingUpdates).addSubscriber());
+            return Flux.merge(
+                            userUpdates.sink.asFlux()
+                                    .onBackpressureBuffer(subscriberBufferSize,
+                                            dropped -> log.debug("Live update for username={} dropped for slow subscriber.", username),
+                                            BufferOverflowStrategy.DROP_OLDEST),
+                            Flux.interval(heartbeatInterval)
+                                    .map(__ -> ServerSentEvent.builder().comment(HEARTBEAT_COMMENT).build()))
+                    .doFinally(signal -> updatesByUsername.computeIfPresent(username, (__, existingUpdates) ->
+                            existingUpdates.removeSubscriber() ? null : existingUpdates));
+        });
+    }
+
+    public boolean hasSubscribers(final String username) {
+        return updatesByUsername.containsKey(username);
+    }
+
+    public void publishBalance(final Revised<Balance> revisedBalance) {
+        final Balance balance = revisedBalance.entity();
+        publish(balance.getUsername(), BALANCE_EVENT, BALANCE_EVENT, new State(balance.getBalance(), revisedBalance), balance);
+    }
+
+    public void publishCategoryUsageLimit(final Revised<CategoryUsageLimit> revisedCategoryUsageLimit) {
+        final CategoryUsageLimit categoryUsageLimit = revisedCategoryUsageLimit.entity();
+        publish(categoryUsageLimit.getUsername(),
+                CATEGORY_USAGE_LIMIT_EVENT,
+                "%s:%s".formatted(categoryUsageLimit.getCategoryName(), categoryUsageLimit.getYearMonth()),
+                new State(List.of(Objects.toString(categoryUsageLimit.getUsage()), Objects.toString(categoryUsageLimit.getLimit())), revisedCategoryUsageLimit),
+                categoryUsageLimit);
+    }
+
+    private void publish(final String username, final String eventName, final String stateKey, final State state, final Object update) {
+        final UserUpdates userUpdates = updatesByUsername.get(username);
+        if (nonNull(userUpdates)) {
+            userUpdates.emitIfChanged(stateKey, state, ServerSentEvent.builder(update).event(eventName).build());
+        }
+    }
+
+    /**
+     * Revisions are comparable only within one document, so a state of another document, e.g. created again after
+     * deletion, is always newer.
+     */
+    private record State(Object value, String documentId, long revision) {
+
+        private State(final Object value, final Revised<?> revised) {
+            this(value, revised.documentId(), revised.revision());
+        }
+
+        private boolean isOlderThan(final State other) {
+            return documentId.equals(other.documentId) && revision < other.revision;
+        }
+    }
+
+    private static final class UserUpdates {
+
+        private final Sinks.Many<ServerSentEvent<Object>> sink = Sinks.many().multicast().directBestEffort();
+        private final Map<String, State> lastStates = new HashMap<>();
+        private int subscribers;
+
+        private UserUpdates addSubscriber() {
+            subscribers++;
+            return this;
+        }
+
+        /**
+         * Returns true when the last subscriber has been removed.
+         */
+        private boolean removeSubscriber() {
+            return --subscribers == 0;
+        }
+
+        private synchronized void emitIfChanged(final String stateKey, final State state, final ServerSentEvent<Object> update) {
+            final State lastState = lastStates.get(stateKey);
+            if (nonNull(lastState) && state.isOlderThan(lastState)) {
+                return;
+            }
+            lastStates.put(stateKey, state);
+            if (isNull(lastState) || !Objects.equals(lastState.value(), state.value())) {
+                sink.tryEmitNext(update);
+            }
+        }
+    }
+}
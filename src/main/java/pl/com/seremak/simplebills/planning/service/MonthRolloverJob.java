@@ -0,0 +1,153 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.planning.repository.CategorySearchRepository;
+import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.JobLeaseSearchRepository;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.math.BigDecimal.ZERO;
+import static pl.com.seremak.simplebills.planning.repository.JobLeaseSearchRepository.CHECKPOINT_FIELD;
+
+/**
+ * Creates CategoryUsageLimits of the next month for all tracked categories before the month starts, so the first
+ * transactions of the month take the fast increment path. Only the replica holding the Mongo lease runs the job.
+ * Progress is saved as a checkpoint with each page, so an interrupted run is resumed by the next holder of the lease.
+ */
+@Slf4j
+@Service
+public class MonthRolloverJob {
+
+    private static final String JOB_NAME = "month-rollover";
+    private static final String YEAR_MONTH_FIELD = "yearMonth";
+    private static final String LAST_USERNAME_FIELD = "lastUsername";
+    private static final String LAST_CATEGORY_NAME_FIELD = "lastCategoryName";
+    private static final String COMPLETED_FIELD = "completed";
+
+    private final JobLeaseSearchRepository jobLeaseSearchRepository;
+    private final CategorySearchRepository categorySearchRepository;
+    private final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository;
+    private final boolean enabled;
+    private final int daysBefore;
+    private final int batchSize;
+    private final Duration lease;
+    private final String owner = UUID.randomUUID().toString();
+
+    public MonthRolloverJob(final JobLeaseSearchRepository jobLeaseSearchRepository,
+                            final CategorySearchRepository categorySearchRepository,
+                            final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository,
+                            @Value("${custom-properties.month-rollover.enabled:true}") final boolean enabled,
+                            @Value("${custom-properties.month-rollover.days-before:3}") final int daysBefore,
+                            @Value("${custom-properties.month-rollover.batch-size:1000}") final int batchSize,
+                            @Value("${custom-properties.month-rollover.lease:5m}") final Duration lease) {
+        this.jobLeaseSearchRepository = jobLeaseSearchRepository;
+        this.categorySearchRepository = categorySearchRepository;
+        this.categoryUsageLimitSearchRepository = categoryUsageLimitSearchRepository;
+        this.enabled = enabled;
+        this.daysBefore = daysBefore;
+        this.batchSize = batchSize;
+        this.lease = lease;
+    }
+
+    /**
+     * Runs periodically within the last days of the month. Runs after the completed rollover only check the checkpoint.
+     */
+    @Scheduled(cron = "${custom-properties.month-rollover.cron:0 0 * * * *}")
+    public void rollOverIfDue() {
+        final YearMonth nextYearMonth = YearMonth.now().plusMonths(1);
+        if (enabled && !LocalDate.now().isBefore(nextYearMonth.atDay(1).minusDays(daysBefore))) {
+            rollOver(nextYearMonth).block();
+        }
+    }
+
+    public Mono<Void> rollOver(final YearMonth yearMonth) {
+        return jobLeaseSearchRepository.acquire(JOB_NAME, owner, lease)
+                .switchIfEmpty(Mono.fromRunnable(() -> log.info("Month rollover is run by another replica.")))
+                .flatMap(leaseDocument -> rollOver(yearMonth, Checkpoint.of(leaseDocument, yearMonth))
+                        .onErrorResume(error -> jobLeaseSearchRepository.release(JOB_NAME, owner)
+                                .then(Mono.error(error)))
+                        .then(jobLeaseSearchRepository.release(JOB_NAME, owner)));
+    }
+
+    private Mono<Void> rollOver(final YearMonth yearMonth, final Checkpoint initialCheckpoint) {
+        if (initialCheckpoint.completed()) {
+            return Mono.empty();
+        }
+        log.info("Month rollover to {} started after username={} and categoryName={}",
+                yearMonth, initialCheckpoint.lastUsername(), initialCheckpoint.lastCategoryName());
+        return Mono.just(initialCheckpoint)
+                .expand(checkpoint -> checkpoint.completed() ? Mono.empty() : rollOverPage(yearMonth, checkpoint))
+                .last()
+                .doOnNext(__ -> log.info("Month rollover to {} completed.", yearMonth))
+                .then();
+    }
+
+    private Mono<Checkpoint> rollOverPage(final YearMonth yearMonth, final Checkpoint checkpoint) {
+        return categorySearchRepository.findTrackedCategoriesPage(checkpoint.lastUsername(), checkpoint.lastCategoryName(), batchSize)
+                .collectList()
+                .flatMap(categories -> categoryUsageLimitSearchRepository.insertAllIfNotExist(toCategoryUsageLimits(categories, yearMonth))
+                        .doOnNext(insertedCount -> log.info("{} of {} CategoryUsageLimits for {} created.", insertedCount, categories.size(), yearMonth))
+                        .thenReturn(checkpoint.next(categories, batchSize)))
+                .flatMap(nextCheckpoint -> jobLeaseSearchRepository.renew(JOB_NAME, owner, lease, nextCheckpoint.toDocument())
+                        .flatMap(renewed -> renewed ?
+                                Mono.just(nextCheckpoint) :
+                                Mono.error(new IllegalStateException("Lease of %s job lost".formatted(JOB_NAME)))));
+    }
+
+    private static List<CategoryUsageLimit> toCategoryUsageLimits(final List<Category> categories, final YearMonth yearMonth) {
+        return categories.stream()
+                .map(category -> CategoryUsageLimit.builder()
+                        .username(category.getUsername())
+                        .categoryName(category.getName())
+                        .yearMonth(yearMonth.toString())
+                        .limit(category.getLimit())
+                        .usage(ZERO)
+                        .build())
+                .toList();
+    }
+
+    private record Checkpoint(String yearMonth, String lastUsername, String lastCategoryName, boolean completed) {
+
+        /**
+         * Checkpoint of another month means that the rollover of given month has not started yet.
+         */
+        private static Checkpoint of(final Document leaseDocument, final YearMonth yearMonth) {
+            return Optional.ofNullable(leaseDocument.get(CHECKPOINT_FIELD, Document.class))
+                    .filter(checkpoint -> yearMonth.toString().equals(checkpoint.getString(YEAR_MONTH_FIELD)))
+                    .map(checkpoint -> new Checkpoint(
+                            checkpoint.getString(YEAR_MONTH_FIELD),
+                            checkpoint.getString(LAST_USERNAME_FIELD),
+                            checkpoint.getString(LAST_CATEGORY_NAME_FIELD),
+                            checkpoint.getBoolean(COMPLETED_FIELD, false)))
+                    .orElse(new Checkpoint(yearMonth.toString(), null, null, false));
+        }
+
+        private Checkpoint next(final List<Category> page, final int pageSize) {
+            if (page.isEmpty()) {
+                return new Checkpoint(yearMonth, lastUsername, lastCategoryName, true);
+            }
+            final Category lastCategory = page.get(page.size() - 1);
+            return new Checkpoint(yearMonth, lastCategory.getUsername(), lastCategory.getName(), page.size() < pageSize);
+        }
+
+        private Document toDocument() {
+            return new Document(YEAR_MONTH_FIELD, yearMonth)
+                    .append(LAST_USERNAME_FIELD, lastUsername)
+                    .append(LAST_CATEGORY_NAME_FIELD, lastCategoryName)
+                    .append(COMPLETED_FIELD, completed);
+        }
+    }
+}
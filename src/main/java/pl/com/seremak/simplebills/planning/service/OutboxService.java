@@ -0,0 +1,196 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.dto.queue.CategoryEventDto;
+import pl.com.seremak.simplebills.planning.config.MongoTransactionSupport;
+import pl.com.seremak.simplebills.planning.messageQueue.MessagePublisher;
+import pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static pl.com.seremak.simplebills.commons.constants.MessageQueue.CATEGORY_EVENT_SIMPLE_BILLS_QUEUE;
+import static pl.com.seremak.simplebills.commons.constants.MessageQueue.SIMPLE_BILLS_EXCHANGE;
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.EXCHANGE_FIELD;
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.PAYLOAD_FIELD;
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.PAYLOAD_TYPE_FIELD;
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.ROUTING_KEY_FIELD;
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD;
+
+/**
+ * Transactional outbox of outgoing events. Events are saved in the same Mongo transaction as the change they describe
+ * (see {@link MongoTransactionSupport}), and the relay publishes them in batches with publisher confirms. A message
+ * is deleted from the outbox only when the broker confirms it, so events survive a crash and are delivered at least once.
+ */
+@Slf4j
+@Service
+public class OutboxService {
+
+    public static final String PAYLOAD_TYPE_NOT_ALLOWED_ERROR_MSG = "Outbox payload type %s is not allowed";
+    private static final Map<String, Class<?>> PAYLOAD_TYPES = Map.of(
+            CategoryEventDto.class.getName(), CategoryEventDto.class);
+
+    private final OutboxSearchRepository outboxSearchRepository;
+    private final MessagePublisher messagePublisher;
+    private final ObjectMapper objectMapper;
+    private final Duration pollInterval;
+    private final int batchSize;
+    private final int concurrency;
+    private final Duration confirmTimeout;
+    private final Duration lease;
+    private final String relayId = UUID.randomUUID().toString();
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final Counter relayedCounter;
+    private final Counter failedCounter;
+    private final Timer relayBatchTimer;
+    private Disposable relay;
+
+    public OutboxService(final OutboxSearchRepository outboxSearchRepository,
+                         final MessagePublisher messagePublisher,
+                         final ObjectMapper objectMapper,
+                         final MeterRegistry meterRegistry,
+                         @Value("${custom-properties.outbox.poll-interval:500ms}") final Duration pollInterval,
+                         @Value("${custom-properties.outbox.batch-size:100}") final int batchSize,
+                         @Value("${custom-properties.outbox.concurrency:8}") final int concurrency,
+                         @Value("${custom-properties.outbox.confirm-timeout:5s}") final Duration confirmTimeout,
+                         @Value("${custom-properties.outbox.lease:30s}") final Duration lease) {
+        this.outboxSearchRepository = outboxSearchRepository;
+        this.messagePublisher = messagePublisher;
+        this.objectMapper = objectMapper;
+        this.pollInterval = pollInterval;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.confirmTimeout = confirmTimeout;
+        this.lease = lease;
+        meterRegistry.gauge("planning.outbox.lag", lagMillis, lag -> lag.get() / 1000d);
+        this.relayedCounter = Counter.builder("planning.outbox.relayed")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("planning.outbox.failed")
+                .register(meterRegistry);
+        this.relayBatchTimer = Timer.builder("planning.outbox.relay.batch")
+                .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        if (nonNull(relay)) {
+            return;
+        }
+        outboxSearchRepository.ensureIndex()
+                .doOnSuccess(indexName -> log.info("Index {} of outbox ensured.", indexName))
+                .block();
+        relay = Flux.interval(pollInterval)
+                .onBackpressureDrop()
+                .concatMap(__ -> relayBatch()
+                        .onErrorResume(error -> {
+                            log.error("Outbox relay failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe();
+        log.info("Outbox relay started with batchSize={} and concurrency={}", batchSize, concurrency);
+    }
+
+    @PreDestroy
+    public void stopRelay() {
+        if (nonNull(relay)) {
+            relay.dispose();
+        }
+    }
+
+    /**
+     * Has to be a part of the transaction which makes the category change.
+     */
+    public Mono<Void> saveCategoryEvent(final CategoryEventDto categoryEventDto) {
+        return save(SIMPLE_BILLS_EXCHANGE, CATEGORY_EVENT_SIMPLE_BILLS_QUEUE, categoryEventDto);
+    }
+
+    /**
+     * Relays one batch. Messages, which are not confirmed, stay in the outbox and are retried when their lease expires.
+     * Lag is the age of the oldest message waiting to be claimed, measured on every poll, so it also grows when
+     * no batch can be claimed or published.
+     */
+    public Mono<Void> relayBatch() {
+        final long start = System.nanoTime();
+        return updateLag()
+                .then(Mono.defer(() -> outboxSearchRepository.claimBatch(relayId, batchSize, lease).collectList()))
+                .filter(outboxMessages -> !outboxMessages.isEmpty())
+                .flatMap(outboxMessages -> Flux.fromIterable(outboxMessages)
+                        .flatMap(this::publish, concurrency)
+                        .collectList()
+                        .flatMap(outboxSearchRepository::deleteAll)
+                        .doOnNext(relayedCount -> logRelayedBatch(outboxMessages.size(), relayedCount, System.nanoTime() - start)))
+                .then();
+    }
+
+    /**
+     * Payload types are limited to the allowed ones, as the relay deserializes payloads by their stored type name.
+     */
+    private Mono<Void> save(final String exchange, final String routingKey, final Object payload) {
+        if (!PAYLOAD_TYPES.containsKey(payload.getClass().getName())) {
+            return Mono.error(new IllegalArgumentException(PAYLOAD_TYPE_NOT_ALLOWED_ERROR_MSG.formatted(payload.getClass().getName())));
+        }
+        return Mono.fromCallable(() -> objectMapper.writeValueAsString(payload))
+                .flatMap(serializedPayload -> outboxSearchRepository.insert(exchange, routingKey, payload.getClass().getName(), serializedPayload))
+                .then();
+    }
+
+    private Mono<ObjectId> publish(final Document outboxMessage) {
+        return Mono.fromCallable(() -> readPayload(outboxMessage))
+                .flatMap(payload -> messagePublisher.sendConfirmed(
+                        outboxMessage.getString(EXCHANGE_FIELD),
+                        outboxMessage.getString(ROUTING_KEY_FIELD),
+                        payload,
+                        confirmTimeout))
+                .thenReturn(outboxMessage.getObjectId(ID_FIELD))
+                .onErrorResume(error -> {
+                    failedCounter.increment();
+                    log.warn("Outbox message with id={} not published: {}", outboxMessage.getObjectId(ID_FIELD), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Object readPayload(final Document outboxMessage) throws JsonProcessingException {
+        final String payloadTypeName = outboxMessage.getString(PAYLOAD_TYPE_FIELD);
+        final Class<?> payloadType = PAYLOAD_TYPES.get(payloadTypeName);
+        if (isNull(payloadType)) {
+            throw new IllegalStateException(PAYLOAD_TYPE_NOT_ALLOWED_ERROR_MSG.formatted(payloadTypeName));
+        }
+        return objectMapper.readValue(outboxMessage.getString(PAYLOAD_FIELD), payloadType);
+    }
+
+    private Mono<Void> updateLag() {
+        return outboxSearchRepository.findOldestClaimableCreatedAt()
+                .map(Date::getTime)
+                .defaultIfEmpty(Instant.now().toEpochMilli())
+                .doOnNext(oldestCreatedAt -> lagMillis.set(Math.max(0, Instant.now().toEpochMilli() - oldestCreatedAt)))
+                .then();
+    }
+
+    private void logRelayedBatch(final int claimedCount, final long relayedCount, final long durationNanos) {
+        relayedCounter.increment(relayedCount);
+        relayBatchTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+        log.info("{} of {} outbox messages relayed in {} ms.", relayedCount, claimedCount, TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+}
@@ -0,0 +1,117 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Posts transactions on a fixed number of serial lanes. Transactions of one user always land on the same lane,
+ * so they are posted in the order of submission. Each lane accepts a bounded number of pending transactions;
+ * when it is full, submitting thread is blocked, which propagates backpressure to the listener container.
+ */
+@Slf4j
+@Service
+public class PartitionedTransactionExecutor {
+
+    private final TransactionPostingService transactionPostingService;
+    private final List<Lane> lanes;
+
+    public PartitionedTransactionExecutor(final TransactionPostingService transactionPostingService,
+                                          final MeterRegistry meterRegistry,
+                                          @Value("${custom-properties.transaction-events.lanes:0}") final int lanesCount,
+                                          @Value("${custom-properties.transaction-events.lane-capacity:64}") final int laneCapacity) {
+        this.transactionPostingService = transactionPostingService;
+        final int effectiveLanesCount = lanesCount > 0 ? lanesCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = IntStream.range(0, effectiveLanesCount)
+                .mapToObj(laneNumber -> new Lane(laneNumber, laneCapacity, meterRegistry))
+                .toList();
+        this.lanes.forEach(this::startLane);
+        log.info("{} transaction lanes with capacity={} started.", effectiveLanesCount, laneCapacity);
+    }
+
+    /**
+     * Enqueues transaction on the lane of its user. Blocks the calling thread while the lane is full, so it must not be
+     * called from an event loop thread. Returned Mono completes when the transaction is posted.
+     */
+    public Mono<Balance> submit(final String transactionId, final TransactionEventDto transactionEventDto) {
+        final Lane lane = lanes.get(Math.floorMod(transactionEventDto.getUsername().hashCode(), lanes.size()));
+        try {
+            lane.permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Mono.error(e);
+        }
+        final LaneTask laneTask = new LaneTask(transactionId, transactionEventDto, Sinks.one(), System.nanoTime());
+        synchronized (lane) {
+            lane.tasks.emitNext(laneTask, Sinks.EmitFailureHandler.FAIL_FAST);
+        }
+        return laneTask.result().asMono();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lanes.forEach(lane -> {
+            synchronized (lane) {
+                lane.tasks.tryEmitComplete();
+            }
+        });
+    }
+
+    private void startLane(final Lane lane) {
+        lane.tasks.asFlux()
+                .concatMap(laneTask -> process(lane, laneTask))
+                .subscribe();
+    }
+
+    private Mono<Void> process(final Lane lane, final LaneTask laneTask) {
+        final long processingStart = System.nanoTime();
+        lane.waitingTimer.record(processingStart - laneTask.submittedAt(), TimeUnit.NANOSECONDS);
+        return transactionPostingService.postTransaction(laneTask.transactionId(), laneTask.transactionEventDto())
+                .doOnSuccess(laneTask.result()::tryEmitValue)
+                .doOnError(laneTask.result()::tryEmitError)
+                .onErrorResume(error -> Mono.empty())
+                .doFinally(signal -> {
+                    lane.processingTimer.record(System.nanoTime() - processingStart, TimeUnit.NANOSECONDS);
+                    lane.permits.release();
+                })
+                .then();
+    }
+
+    private static final class Lane {
+
+        private final Semaphore permits;
+        private final Sinks.Many<LaneTask> tasks = Sinks.many().unicast().onBackpressureBuffer();
+        private final Timer waitingTimer;
+        private final Timer processingTimer;
+
+        private Lane(final int laneNumber, final int capacity, final MeterRegistry meterRegistry) {
+            this.permits = new Semaphore(capacity);
+            final String laneTag = String.valueOf(laneNumber);
+            Gauge.builder("planning.transaction.lane.queue.depth", permits, lanePermits -> capacity - lanePermits.availablePermits())
+                    .tag("lane", laneTag)
+                    .register(meterRegistry);
+            this.waitingTimer = Timer.builder("planning.transaction.lane.waiting")
+                    .tag("lane", laneTag)
+                    .register(meterRegistry);
+            this.processingTimer = Timer.builder("planning.transaction.lane.processing")
+                    .tag("lane", laneTag)
+                    .register(meterRegistry);
+        }
+    }
+
+    private record LaneTask(String transactionId, TransactionEventDto transactionEventDto, Sinks.One<Balance> result, long submittedAt) {
+    }
+}
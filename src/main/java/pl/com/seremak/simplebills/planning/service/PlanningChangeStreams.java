@@ -0,0 +1,100 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.mongodb.client.model.changestream.FullDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.planning.config.MongoTransactionSupport;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+
+import static java.util.Objects.nonNull;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Change streams of balance and categoryUsageLimit collections. They bring changes made by all replicas to live updates
+ * and to the balance cache. They are opt-in, as they require a replica set or a sharded cluster; on a standalone server
+ * they are not started even if enabled. A failed stream is reopened with backoff.
+ */
+@Slf4j
+@Service
+public class PlanningChangeStreams {
+
+    private static final Duration CHANGE_STREAM_MAX_BACKOFF = Duration.ofMinutes(1);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final LiveUpdatesService liveUpdatesService;
+    private final BalanceCache balanceCache;
+    private final MongoTransactionSupport mongoTransactionSupport;
+    private final boolean enabled;
+    private Disposable changeStreams;
+
+    public PlanningChangeStreams(final ReactiveMongoTemplate mongoTemplate,
+                                 final LiveUpdatesService liveUpdatesService,
+                                 final BalanceCache balanceCache,
+                                 final MongoTransactionSupport mongoTransactionSupport,
+                                 @Value("${custom-properties.change-streams.enabled:false}") final boolean enabled) {
+        this.mongoTemplate = mongoTemplate;
+        this.liveUpdatesService = liveUpdatesService;
+        this.balanceCache = balanceCache;
+        this.mongoTransactionSupport = mongoTransactionSupport;
+        this.enabled = enabled;
+    }
+
+    @EventListener
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        if (!enabled || nonNull(changeStreams)) {
+            return;
+        }
+        changeStreams = mongoTransactionSupport.isSupported()
+                .filter(isSupported -> {
+                    if (!isSupported) {
+                        log.warn("Change streams are enabled, but MongoDB server is standalone or unreachable. They are not "
+                                + "started, so changes made by other replicas reach the balance cache only after its TTL and "
+                                + "are not pushed as live updates.");
+                    }
+                    return isSupported;
+                })
+                .doOnNext(__ -> log.info("Change streams of planning collections started."))
+                .flatMapMany(__ -> Flux.merge(
+                        watch(Balance.class).doOnNext(balance -> {
+                            balanceCache.onBalanceChanged(balance);
+                            liveUpdatesService.publishBalance(balance);
+                        }),
+                        watch(CategoryUsageLimit.class).doOnNext(liveUpdatesService::publishCategoryUsageLimit)))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stopChangeStreams() {
+        if (nonNull(changeStreams)) {
+            changeStreams.dispose();
+        }
+    }
+
+    private <T> Flux<Revised<T>> watch(final Class<T> entityClass) {
+        final ChangeStreamOptions changeStreamOptions = ChangeStreamOptions.builder()
+                .fullDocumentLookup(FullDocument.UPDATE_LOOKUP)
+                .filter(Aggregation.newAggregation(Aggregation.match(where("operationType").in("insert", "update", "replace"))))
+                .build();
+        return mongoTemplate.changeStream(mongoTemplate.getCollectionName(entityClass), changeStreamOptions, Document.class)
+                .mapNotNull(ChangeStreamEvent::getBody)
+                .map(document -> Revised.read(mongoTemplate.getConverter(), entityClass, document))
+                .doOnError(error -> log.warn("Change stream of {} failed: {}", entityClass.getSimpleName(), error.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(CHANGE_STREAM_MAX_BACKOFF));
+    }
+}
@@ -0,0 +1,76 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Pauses transaction posting for maintenance which needs balances and usages to stand still, e.g. journal replay.
+ * Postings started while the gate is closed wait until it is opened, so no transaction is lost, and backpressure
+ * reaches the listener container through the lanes. A posting is counted as in flight before it checks the gate,
+ * so closing the gate and then waiting for zero in-flight postings cannot miss a posting which has just started.
+ */
+@Slf4j
+@Service
+public class PostingGate {
+
+    private static final Duration IN_FLIGHT_POLL_INTERVAL = Duration.ofMillis(10);
+
+    private final AtomicInteger inFlightPostings = new AtomicInteger();
+    private volatile Sinks.Empty<Void> reopening;
+
+    public <T> Mono<T> guard(final Supplier<Mono<T>> posting) {
+        return Mono.defer(() -> {
+            inFlightPostings.incrementAndGet();
+            final Sinks.Empty<Void> closedGate = reopening;
+            if (nonNull(closedGate)) {
+                inFlightPostings.decrementAndGet();
+                return closedGate.asMono().then(guard(posting));
+            }
+            return posting.get()
+                    .doFinally(signal -> inFlightPostings.decrementAndGet());
+        });
+    }
+
+    /**
+     * Closes the gate and completes when all postings in flight are finished. If they do not finish within the timeout,
+     * the gate is opened again and an error is emitted.
+     */
+    public Mono<Void> close(final Duration timeout) {
+        return Mono.defer(() -> {
+                    synchronized (this) {
+                        if (nonNull(reopening)) {
+                            return Mono.error(new IllegalStateException("Posting is already paused"));
+                        }
+                        reopening = Sinks.empty();
+                    }
+                    log.info("Posting paused, waiting for {} postings in flight.", inFlightPostings.get());
+                    return Flux.interval(Duration.ZERO, IN_FLIGHT_POLL_INTERVAL)
+                            .filter(__ -> inFlightPostings.get() == 0)
+                            .next()
+                            .timeout(timeout)
+                            .doOnError(error -> open())
+                            .then();
+                });
+    }
+
+    public void open() {
+        final Sinks.Empty<Void> closedGate;
+        synchronized (this) {
+            closedGate = reopening;
+            reopening = null;
+        }
+        if (nonNull(closedGate)) {
+            closedGate.tryEmitEmpty();
+            log.info("Posting resumed.");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.planning.repository.CategoryRepository;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.MASTER_USER;
+
+/**
+ * Immutable snapshot of standard categories of the master user, which are copied to every new user.
+ * It is replaced as a whole when master user categories change, so readers never see a partial template.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StandardCategoriesTemplate {
+
+    private final CategoryRepository categoryRepository;
+    private volatile List<Category> masterUserStandardCategories;
+
+
+    public Mono<List<Category>> findStandardCategories() {
+        return Mono.justOrEmpty(masterUserStandardCategories)
+                .switchIfEmpty(Mono.defer(this::refresh));
+    }
+
+    public Mono<List<Category>> refresh() {
+        return categoryRepository.findCategoriesByUsernameAndType(MASTER_USER, Category.Type.STANDARD)
+                .collectList()
+                .map(this::replace);
+    }
+
+    public List<Category> replace(final List<Category> standardCategories) {
+        masterUserStandardCategories = List.copyOf(standardCategories);
+        log.info("Standard categories template loaded with {} categories.", standardCategories.size());
+        return masterUserStandardCategories;
+    }
+}
@@ -0,0 +1,232 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.commons.utils.TransactionBalanceUtils;
+import pl.com.seremak.simplebills.planning.repository.BalanceSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.CategoryRepository;
+import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.math.BigDecimal.ZERO;
+import static java.util.Objects.isNull;
+import static pl.com.seremak.simplebills.planning.service.CategoryUsageLimitService.getTransactionYearMonthOrSetCurrentIfNotExists;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TransactionBatchPostingService {
+
+    public static final String PARTIAL_BATCH_POSTING_ERROR_MSG = "Batch of %d transactions posted partially. %s update failed";
+
+    private final CategoryRepository categoryRepository;
+    private final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository;
+    private final BalanceSearchRepository balanceSearchRepository;
+    private final BalanceCache balanceCache;
+    private final TransactionJournal transactionJournal;
+    private final PostingGate postingGate;
+    private final TransactionDeduplicationService transactionDeduplicationService;
+    private final LiveUpdatesService liveUpdatesService;
+
+
+    /**
+     * Posts a batch of transactions with one bulk write per collection. Deltas are summed per (username, categoryName, yearMonth)
+     * for usage limits and per username for balances, so the order of transactions within the batch does not matter.
+     * Transactions are registered as pending at once, before writing, and redelivered ones are skipped. As in
+     * {@link TransactionPostingService}, the batch is released only if both writes fail, since repeating it after
+     * a partial posting would apply the successful write twice. Otherwise it is completed, and a partial posting is
+     * journaled and reported with an error.
+     */
+    public Mono<Void> postTransactions(final List<IdentifiedTransaction> identifiedTransactions) {
+        if (identifiedTransactions.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<String> transactionIds = identifiedTransactions.stream()
+                .map(IdentifiedTransaction::transactionId)
+                .toList();
+        return postingGate.guard(() -> transactionDeduplicationService.registerAllIfFirst(transactionIds)
+                .flatMap(registeredTransactionIds -> postNewTransactions(selectNewTransactions(identifiedTransactions, registeredTransactionIds),
+                        registeredTransactionIds)));
+    }
+
+    /**
+     * Applies usage deltas with one bulk write. Deltas are already summed per (username, categoryName, yearMonth).
+     */
+    Mono<Void> applyUsageDeltas(final Map<UsageKey, BigDecimal> usageDeltas) {
+        return prepareTrackedUsages(usageDeltas)
+                .flatMap(categoryUsageLimitSearchRepository::incrementUsages)
+                .doOnNext(result -> log.info("Usage limits updated in batch: matched={}, upserted={}", result.getMatchedCount(), result.getUpserts().size()))
+                .then();
+    }
+
+    /**
+     * Applies balance deltas with one bulk write. Deltas are already summed per username.
+     */
+    Mono<Void> applyBalanceDeltas(final Map<String, BigDecimal> balanceDeltas) {
+        return balanceSearchRepository.incrementBalances(balanceDeltas)
+                .doOnNext(result -> log.info("Balances updated in batch: matched={}, upserted={}", result.getMatchedCount(), result.getUpserts().size()))
+                .doFinally(signal -> balanceCache.invalidateAll(balanceDeltas.keySet()))
+                .then();
+    }
+
+    private Mono<Void> postNewTransactions(final List<TransactionEventDto> newTransactions, final Set<String> registeredTransactionIds) {
+        if (newTransactions.isEmpty()) {
+            log.info("Batch of duplicated transactions skipped.");
+            return Mono.empty();
+        }
+        return Mono.zip(
+                        applyUsageDeltas(sumUsageDeltas(newTransactions)).materialize(),
+                        applyBalanceDeltas(sumBalanceDeltas(newTransactions)).materialize())
+                .flatMap(results -> handlePostingResults(newTransactions, registeredTransactionIds, results.getT1(), results.getT2()));
+    }
+
+    private Mono<Void> handlePostingResults(final List<TransactionEventDto> newTransactions,
+                                            final Set<String> registeredTransactionIds,
+                                            final Signal<Void> usageLimitsResult,
+                                            final Signal<Void> balancesResult) {
+        if (usageLimitsResult.isOnError() && balancesResult.isOnError()) {
+            return transactionDeduplicationService.releaseAll(registeredTransactionIds)
+                    .then(Mono.error(balancesResult.getThrowable()));
+        }
+        transactionJournal.appendAll(newTransactions);
+        if (!usageLimitsResult.isOnError() && !balancesResult.isOnError()) {
+            log.info("Batch of {} transactions posted.", newTransactions.size());
+            return transactionDeduplicationService.completeAll(registeredTransactionIds)
+                    .then(publishLiveUpdates(newTransactions));
+        }
+        final Throwable error = usageLimitsResult.isOnError() ? usageLimitsResult.getThrowable() : balancesResult.getThrowable();
+        final String failedUpdate = usageLimitsResult.isOnError() ? "CategoryUsageLimit" : "Balance";
+        log.error("Batch of {} transactions posted partially. {} update failed", newTransactions.size(), failedUpdate, error);
+        return transactionDeduplicationService.completeAll(registeredTransactionIds)
+                .then(publishLiveUpdates(newTransactions))
+                .then(Mono.error(new IllegalStateException(PARTIAL_BATCH_POSTING_ERROR_MSG.formatted(newTransactions.size(), failedUpdate), error)));
+    }
+
+    /**
+     * Bulk writes do not return written documents, so balances and usages of users with live update subscribers are
+     * read back and published. Users without subscribers cost no read. Publishing never fails the posting.
+     */
+    private Mono<Void> publishLiveUpdates(final List<TransactionEventDto> newTransactions) {
+        final Set<UsageKey> subscribedMonths = newTransactions.stream()
+                .filter(transactionEventDto -> liveUpdatesService.hasSubscribers(transactionEventDto.getUsername()))
+                .map(transactionEventDto -> new UsageKey(transactionEventDto.getUsername(), null, getTransactionYearMonthOrSetCurrentIfNotExists(transactionEventDto)))
+                .collect(Collectors.toSet());
+        final Set<String> subscribedUsernames = subscribedMonths.stream()
+                .map(UsageKey::username)
+                .collect(Collectors.toSet());
+        return Mono.when(
+                        Flux.fromIterable(subscribedUsernames)
+                                .flatMap(balanceSearchRepository::findBalance)
+                                .doOnNext(liveUpdatesService::publishBalance),
+                        Flux.fromIterable(subscribedMonths)
+                                .flatMap(month -> categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(month.username(), month.yearMonth()))
+                                .doOnNext(liveUpdatesService::publishCategoryUsageLimit))
+                .onErrorResume(error -> {
+                    log.error("Live updates of batch with {} transactions not published: {}", newTransactions.size(), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Keeps transactions without identity and the first occurrence of each newly registered one.
+     */
+    private static List<TransactionEventDto> selectNewTransactions(final List<IdentifiedTransaction> identifiedTransactions,
+                                                                   final Set<String> registeredTransactionIds) {
+        final Set<String> unclaimedTransactionIds = new HashSet<>(registeredTransactionIds);
+        return identifiedTransactions.stream()
+                .filter(identifiedTransaction -> isNull(identifiedTransaction.transactionId())
+                        || unclaimedTransactionIds.remove(identifiedTransaction.transactionId()))
+                .map(IdentifiedTransaction::transaction)
+                .toList();
+    }
+
+    /**
+     * Maps usages, keyed by (username, categoryName, yearMonth), to CategoryUsageLimits with limits of their categories.
+     * Usages of categories without usage limit are dropped.
+     */
+    Mono<List<CategoryUsageLimit>> prepareTrackedUsages(final Map<UsageKey, BigDecimal> usages) {
+        return findCategories(usages.keySet())
+                .map(categories -> prepareUsageDeltas(usages, categories));
+    }
+
+    static UsageKey usageKeyOf(final TransactionEventDto transactionEventDto) {
+        return new UsageKey(transactionEventDto.getUsername(), transactionEventDto.getCategoryName(), getTransactionYearMonthOrSetCurrentIfNotExists(transactionEventDto));
+    }
+
+    static BigDecimal usageDeltaOf(final TransactionEventDto transactionEventDto) {
+        return TransactionBalanceUtils.updateCategoryUsage(ZERO, transactionEventDto);
+    }
+
+    static BigDecimal balanceDeltaOf(final TransactionEventDto transactionEventDto) {
+        return TransactionBalanceUtils.updateBalance(ZERO, transactionEventDto);
+    }
+
+    private Mono<Map<CategoryKey, Category>> findCategories(final Set<UsageKey> usageKeys) {
+        final Set<String> usernames = usageKeys.stream()
+                .map(UsageKey::username)
+                .collect(Collectors.toSet());
+        return categoryRepository.findCategoriesByUsernameIn(usernames)
+                .collectMap(category -> new CategoryKey(category.getUsername(), category.getName()), Function.identity());
+    }
+
+    private static List<CategoryUsageLimit> prepareUsageDeltas(final Map<UsageKey, BigDecimal> usageDeltas,
+                                                               final Map<CategoryKey, Category> categories) {
+        return usageDeltas.entrySet().stream()
+                .filter(usageDelta -> isUsageLimitTracked(usageDelta.getKey(), categories.get(usageDelta.getKey().categoryKey())))
+                .map(usageDelta -> CategoryUsageLimit.builder()
+                        .username(usageDelta.getKey().username())
+                        .categoryName(usageDelta.getKey().categoryName())
+                        .yearMonth(usageDelta.getKey().yearMonth())
+                        .limit(categories.get(usageDelta.getKey().categoryKey()).getLimit())
+                        .usage(usageDelta.getValue())
+                        .build())
+                .toList();
+    }
+
+    private static boolean isUsageLimitTracked(final UsageKey usageKey, final Category category) {
+        if (isNull(category)) {
+            log.warn("Category with name={} for username={} not found. Usage will not be updated.", usageKey.categoryName(), usageKey.username());
+            return false;
+        }
+        return CategoryUsageLimitService.isCategoryUsageLimitApplicable(category);
+    }
+
+    private static Map<UsageKey, BigDecimal> sumUsageDeltas(final List<TransactionEventDto> transactionEventDtos) {
+        final Map<UsageKey, BigDecimal> usageDeltas = new HashMap<>();
+        transactionEventDtos.forEach(transactionEventDto ->
+                usageDeltas.merge(usageKeyOf(transactionEventDto), usageDeltaOf(transactionEventDto), BigDecimal::add));
+        return usageDeltas;
+    }
+
+    private static Map<String, BigDecimal> sumBalanceDeltas(final List<TransactionEventDto> transactionEventDtos) {
+        final Map<String, BigDecimal> balanceDeltas = new HashMap<>();
+        transactionEventDtos.forEach(transactionEventDto ->
+                balanceDeltas.merge(transactionEventDto.getUsername(), balanceDeltaOf(transactionEventDto), BigDecimal::add));
+        return balanceDeltas;
+    }
+
+    record UsageKey(String username, String categoryName, String yearMonth) {
+
+        CategoryKey categoryKey() {
+            return new CategoryKey(username, categoryName);
+        }
+    }
+
+    private record CategoryKey(String username, String categoryName) {
+    }
+}
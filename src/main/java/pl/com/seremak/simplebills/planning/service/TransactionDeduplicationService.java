@@ -0,0 +1,183 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.exceptions.ConflictException;
+import pl.com.seremak.simplebills.planning.repository.ProcessedTransactionSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.ProcessedTransactionSearchRepository.ClaimResult;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Recognizes redelivered transactions. Recently posted keys are kept in a bounded in-memory LRU map, so most duplicates
+ * are rejected without a round trip. Older keys are found by the unique _id in processedTransactions collection.
+ * The key is the identity assigned by the producer (AMQP message id or HTTP idempotency key), never the content, so two
+ * identical but separate transactions are both posted. Transactions without identity are posted without deduplication.
+ * A key is registered as pending before posting and completed after it, so a transaction whose posting was interrupted
+ * by a crash is posted again when redelivered after the pending timeout. Such posting may apply a write which had
+ * succeeded before the crash once more, as losing the transaction would be worse. Only completed keys are cached.
+ */
+@Slf4j
+@Service
+public class TransactionDeduplicationService {
+
+    public static final String TRANSACTION_IN_PROGRESS_ERROR_MSG = "Transaction with id=%s is being posted by another consumer";
+
+    private final ProcessedTransactionSearchRepository processedTransactionSearchRepository;
+    private final Duration ttl;
+    private final Duration pendingTimeout;
+    private final Map<String, Boolean> recentTransactionKeys;
+    private final Counter cacheHitCounter;
+    private final Counter cacheMissCounter;
+    private final Counter databaseDuplicateCounter;
+    private final Counter missingIdentityCounter;
+
+    public TransactionDeduplicationService(final ProcessedTransactionSearchRepository processedTransactionSearchRepository,
+                                           final MeterRegistry meterRegistry,
+                                           @Value("${custom-properties.transaction-deduplication.cache-size:10000}") final int cacheSize,
+                                           @Value("${custom-properties.transaction-deduplication.ttl:7d}") final Duration ttl,
+                                           @Value("${custom-properties.transaction-deduplication.pending-timeout:1m}") final Duration pendingTimeout) {
+        this.processedTransactionSearchRepository = processedTransactionSearchRepository;
+        this.ttl = ttl;
+        this.pendingTimeout = pendingTimeout;
+        this.recentTransactionKeys = Collections.synchronizedMap(new LinkedHashMap<>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        this.cacheHitCounter = Counter.builder("planning.transaction.deduplication.cache")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.cacheMissCounter = Counter.builder("planning.transaction.deduplication.cache")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.databaseDuplicateCounter = Counter.builder("planning.transaction.deduplication.database.duplicates")
+                .register(meterRegistry);
+        this.missingIdentityCounter = Counter.builder("planning.transaction.deduplication.missing.identity")
+                .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        processedTransactionSearchRepository.ensureTtlIndex(ttl)
+                .doOnSuccess(indexName -> log.info("TTL index {} for processed transactions ensured.", indexName))
+                .block();
+    }
+
+    /**
+     * Emits true if the transaction is to be posted, i.e. it has not been posted before or its posting was interrupted.
+     * The transaction is registered as pending at once, so it has to be completed with {@link #complete(String)} after
+     * posting, or released with {@link #release(String)} if posting fails. A transaction being posted by another consumer
+     * is rejected with ConflictException, so it is redelivered later. Transaction without identity cannot be recognized
+     * when redelivered, so it is always treated as the first one.
+     */
+    public Mono<Boolean> registerIfFirst(final String transactionId) {
+        if (isNull(transactionId)) {
+            missingIdentityCounter.increment();
+            return Mono.just(true);
+        }
+        if (nonNull(recentTransactionKeys.get(transactionId))) {
+            cacheHitCounter.increment();
+            return Mono.just(false);
+        }
+        cacheMissCounter.increment();
+        return processedTransactionSearchRepository.claim(transactionId, pendingTimeout)
+                .flatMap(claimResult -> switch (claimResult) {
+                    case CLAIMED -> Mono.just(true);
+                    case DONE -> {
+                        recentTransactionKeys.put(transactionId, Boolean.TRUE);
+                        databaseDuplicateCounter.increment();
+                        yield Mono.just(false);
+                    }
+                    case IN_PROGRESS -> Mono.<Boolean>error(new ConflictException(TRANSACTION_IN_PROGRESS_ERROR_MSG.formatted(transactionId)));
+                });
+    }
+
+    /**
+     * Registers transactions of a batch with one insert and emits ids of those which are to be posted. Null ids are
+     * skipped, as such transactions are always treated as the first ones. If any transaction is being posted by another
+     * consumer, the claimed ones are released and the batch is rejected with ConflictException, so it is redelivered.
+     */
+    public Mono<Set<String>> registerAllIfFirst(final Collection<String> transactionIds) {
+        final List<String> identifiedTransactionIds = transactionIds.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        missingIdentityCounter.increment(transactionIds.size() - transactionIds.stream().filter(Objects::nonNull).count());
+        final List<String> uncachedTransactionIds = identifiedTransactionIds.stream()
+                .filter(transactionId -> isNull(recentTransactionKeys.get(transactionId)))
+                .toList();
+        cacheHitCounter.increment(identifiedTransactionIds.size() - uncachedTransactionIds.size());
+        cacheMissCounter.increment(uncachedTransactionIds.size());
+        return processedTransactionSearchRepository.claimAll(uncachedTransactionIds, pendingTimeout)
+                .flatMap(claimResults -> {
+                    final Set<String> claimedTransactionIds = selectTransactionIds(claimResults, ClaimResult.CLAIMED);
+                    final Set<String> doneTransactionIds = selectTransactionIds(claimResults, ClaimResult.DONE);
+                    final Set<String> inProgressTransactionIds = selectTransactionIds(claimResults, ClaimResult.IN_PROGRESS);
+                    doneTransactionIds.forEach(transactionId -> recentTransactionKeys.put(transactionId, Boolean.TRUE));
+                    databaseDuplicateCounter.increment(doneTransactionIds.size());
+                    return inProgressTransactionIds.isEmpty() ?
+                            Mono.just(claimedTransactionIds) :
+                            processedTransactionSearchRepository.deleteAll(claimedTransactionIds)
+                                    .then(Mono.<Set<String>>error(new ConflictException(TRANSACTION_IN_PROGRESS_ERROR_MSG.formatted(inProgressTransactionIds))));
+                });
+    }
+
+    /**
+     * Marks posted transactions as done. A failure is only logged, as the transactions are posted already, and failing
+     * their posting would get them redelivered and posted again once the pending timeout passes.
+     */
+    public Mono<Void> completeAll(final Collection<String> transactionIds) {
+        final List<String> identifiedTransactionIds = transactionIds.stream()
+                .filter(Objects::nonNull)
+                .toList();
+        return processedTransactionSearchRepository.markDone(identifiedTransactionIds)
+                .doOnSuccess(__ -> identifiedTransactionIds.forEach(transactionId -> recentTransactionKeys.put(transactionId, Boolean.TRUE)))
+                .onErrorResume(error -> {
+                    log.error("Posted transactions with ids={} not marked as done: {}", identifiedTransactionIds, error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    public Mono<Void> complete(final String transactionId) {
+        return isNull(transactionId) ? Mono.empty() : completeAll(List.of(transactionId));
+    }
+
+    public Mono<Void> releaseAll(final Collection<String> transactionIds) {
+        transactionIds.forEach(recentTransactionKeys::remove);
+        return processedTransactionSearchRepository.deleteAll(transactionIds);
+    }
+
+    public Mono<Void> release(final String transactionId) {
+        if (isNull(transactionId)) {
+            return Mono.empty();
+        }
+        recentTransactionKeys.remove(transactionId);
+        return processedTransactionSearchRepository.delete(transactionId);
+    }
+
+    private static Set<String> selectTransactionIds(final Map<String, ClaimResult> claimResults, final ClaimResult claimResult) {
+        return claimResults.entrySet().stream()
+                .filter(entry -> claimResult.equals(entry.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,324 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.isNull;
+import static pl.com.seremak.simplebills.planning.service.CategoryUsageLimitService.getTransactionYearMonthOrSetCurrentIfNotExists;
+
+/**
+ * Append-only local journal of posted transactions, kept in memory-mapped segment files of fixed size. Each record is
+ * a length followed by the JSON entry. The length is written after the entry, so a record cut by a crash is never read,
+ * and zero length marks the end of written records. Written pages are flushed by the OS, so records survive a crash
+ * of the application, and segments are forced to disk on rotation and on shutdown. The directory must be an absolute
+ * path, so the journal does not depend on the working directory. Closed segments beyond retention, i.e. over the
+ * maximum count or older than the maximum age, are deleted on opening and on rotation; the active segment is never
+ * deleted. A journal with retention does not hold the whole history, so it cannot be declared complete for replay.
+ */
+@Slf4j
+@Service
+public class TransactionJournal {
+
+    private static final String SEGMENT_FILE_PREFIX = "transactions-";
+    private static final String SEGMENT_FILE_SUFFIX = ".journal";
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Duration maxAge;
+    private final Counter appendedCounter;
+    private final Counter deletedSegmentsCounter;
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+
+    public TransactionJournal(final ObjectMapper objectMapper,
+                              final MeterRegistry meterRegistry,
+                              @Value("${custom-properties.transaction-journal.enabled:false}") final boolean enabled,
+                              @Value("${custom-properties.transaction-journal.directory:}") final String directory,
+                              @Value("${custom-properties.transaction-journal.segment-size:64MB}") final DataSize segmentSize,
+                              @Value("${custom-properties.transaction-journal.retention.max-segments:0}") final int maxSegments,
+                              @Value("${custom-properties.transaction-journal.retention.max-age:0s}") final Duration maxAge) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.directory = directory.isBlank() ? null : Path.of(directory);
+        this.segmentSize = Math.toIntExact(segmentSize.toBytes());
+        this.maxSegments = maxSegments;
+        this.maxAge = maxAge;
+        this.appendedCounter = Counter.builder("planning.transaction.journal.appended")
+                .register(meterRegistry);
+        this.deletedSegmentsCounter = Counter.builder("planning.transaction.journal.segments.deleted")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Appending continues in the last segment, after its last written record.
+     */
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (isNull(directory) || !directory.isAbsolute()) {
+            throw new IllegalStateException("Transaction journal is enabled, so its directory must be an absolute path, but is: %s".formatted(directory));
+        }
+        Files.createDirectories(directory);
+        final List<Path> segmentPaths = findSegmentPaths();
+        segmentNumber = segmentPaths.isEmpty() ? 0 : segmentNumberOf(segmentPaths.get(segmentPaths.size() - 1));
+        segment = mapSegment(segmentNumber);
+        while (segment.remaining() >= LENGTH_SIZE && segment.getInt(segment.position()) > 0) {
+            segment.position(segment.position() + LENGTH_SIZE + segment.getInt(segment.position()));
+        }
+        deleteSegmentsBeyondRetention();
+        log.info("Transaction journal opened in {} at segment={} and position={}", directory, segmentNumber, segment.position());
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (enabled) {
+            segment.force();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean hasRetention() {
+        return maxSegments > 0 || maxAge.isPositive();
+    }
+
+    /**
+     * Month of the usage is resolved once, when the transaction is posted, so replay assigns usage to the same month.
+     */
+    public void append(final TransactionEventDto transactionEventDto) {
+        if (!enabled) {
+            return;
+        }
+        final byte[] entry = serialize(new JournalEntry(getTransactionYearMonthOrSetCurrentIfNotExists(transactionEventDto), transactionEventDto));
+        if (LENGTH_SIZE + entry.length > segmentSize) {
+            throw new IllegalArgumentException("Journal entry of %d bytes exceeds segment size".formatted(entry.length));
+        }
+        synchronized (this) {
+            if (segment.remaining() < LENGTH_SIZE + entry.length) {
+                rotate();
+            }
+            final int recordPosition = segment.position();
+            segment.position(recordPosition + LENGTH_SIZE);
+            segment.put(entry);
+            segment.putInt(recordPosition, entry.length);
+        }
+        appendedCounter.increment();
+    }
+
+    public void appendAll(final List<TransactionEventDto> transactionEventDtos) {
+        transactionEventDtos.forEach(this::append);
+    }
+
+    /**
+     * Reads all journal entries appended before the subscription, in the order of appending. The end of the active
+     * segment is taken under the append lock, so its records are fully visible, and appending is not blocked while
+     * reading. Closed segments were forced on rotation, so they are streamed from their files one at a time, without
+     * mapping them. A closed segment deleted by retention before it is reached is skipped.
+     */
+    public Flux<JournalEntry> readAll() {
+        if (!enabled) {
+            return Flux.empty();
+        }
+        return Flux.defer(() -> {
+            final List<Path> closedSegmentPaths;
+            final ByteBuffer activeSegment;
+            synchronized (this) {
+                closedSegmentPaths = findSegmentPaths().stream()
+                        .filter(segmentPath -> segmentNumberOf(segmentPath) < segmentNumber)
+                        .toList();
+                activeSegment = segment.duplicate().flip();
+            }
+            return Flux.fromIterable(closedSegmentPaths)
+                    .concatMap(this::readClosedSegment)
+                    .concatWith(readActiveSegment(activeSegment));
+        });
+    }
+
+    private Flux<JournalEntry> readClosedSegment(final Path segmentPath) {
+        return Flux.<JournalEntry, DataInputStream>generate(() -> openSegmentStream(segmentPath), (segmentStream, sink) -> {
+                    try {
+                        final int entryLength = segmentStream.readInt();
+                        if (entryLength <= 0) {
+                            sink.complete();
+                            return segmentStream;
+                        }
+                        final byte[] entry = new byte[entryLength];
+                        segmentStream.readFully(entry);
+                        sink.next(deserialize(entry));
+                    } catch (final EOFException e) {
+                        sink.complete();
+                    } catch (final IOException e) {
+                        sink.error(new UncheckedIOException("Cannot read journal segment %s".formatted(segmentPath), e));
+                    }
+                    return segmentStream;
+                }, TransactionJournal::closeQuietly)
+                .onErrorResume(error -> error.getCause() instanceof NoSuchFileException, error -> {
+                    log.info("Journal segment {} deleted by retention before it was read.", segmentPath);
+                    return Flux.empty();
+                });
+    }
+
+    private Flux<JournalEntry> readActiveSegment(final ByteBuffer activeSegment) {
+        return Flux.generate(() -> activeSegment, (readSegment, sink) -> {
+            final int entryLength = readSegment.remaining() >= LENGTH_SIZE ? readSegment.getInt() : 0;
+            if (entryLength <= 0) {
+                sink.complete();
+                return readSegment;
+            }
+            final byte[] entry = new byte[entryLength];
+            readSegment.get(entry);
+            sink.next(deserialize(entry));
+            return readSegment;
+        });
+    }
+
+    private void rotate() {
+        segment.force();
+        segment = mapSegment(++segmentNumber);
+        log.info("Transaction journal rotated to segment={}", segmentNumber);
+        deleteSegmentsBeyondRetention();
+    }
+
+    /**
+     * Closed segments are deleted oldest first, while there are more segments than the maximum count, or while the
+     * oldest one was last written before the maximum age. Zero count or age disables the respective limit.
+     */
+    private void deleteSegmentsBeyondRetention() {
+        if (!hasRetention()) {
+            return;
+        }
+        final List<Path> closedSegmentPaths = findSegmentPaths().stream()
+                .filter(segmentPath -> segmentNumberOf(segmentPath) < segmentNumber)
+                .toList();
+        final Instant oldestRetained = Instant.now().minus(maxAge);
+        for (int index = 0; index < closedSegmentPaths.size(); index++) {
+            final Path segmentPath = closedSegmentPaths.get(index);
+            final boolean overMaxSegments = maxSegments > 0 && closedSegmentPaths.size() - index + 1 > maxSegments;
+            if (!overMaxSegments && !(maxAge.isPositive() && lastModifiedOf(segmentPath).isBefore(oldestRetained))) {
+                return;
+            }
+            deleteSegment(segmentPath);
+        }
+    }
+
+    private void deleteSegment(final Path segmentPath) {
+        try {
+            Files.deleteIfExists(segmentPath);
+            deletedSegmentsCounter.increment();
+            log.info("Journal segment {} deleted by retention.", segmentPath);
+        } catch (final IOException e) {
+            log.warn("Journal segment {} not deleted: {}", segmentPath, e.getMessage());
+        }
+    }
+
+    private static Instant lastModifiedOf(final Path segmentPath) {
+        try {
+            return Files.getLastModifiedTime(segmentPath).toInstant();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot read modification time of journal segment %s".formatted(segmentPath), e);
+        }
+    }
+
+    private MappedByteBuffer mapSegment(final long number) {
+        try (final FileChannel channel = FileChannel.open(segmentPathOf(number), CREATE, READ, WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentSize));
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot map journal segment=%d".formatted(number), e);
+        }
+    }
+
+    private static DataInputStream openSegmentStream(final Path segmentPath) {
+        try {
+            return new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath, READ)));
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot open journal segment %s".formatted(segmentPath), e);
+        }
+    }
+
+    private static void closeQuietly(final DataInputStream segmentStream) {
+        try {
+            segmentStream.close();
+        } catch (final IOException e) {
+            log.warn("Journal segment stream not closed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Segment numbers are zero padded, so the order of file names is the order of segments.
+     */
+    private List<Path> findSegmentPaths() {
+        try (final Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(path -> path.getFileName().toString().startsWith(SEGMENT_FILE_PREFIX))
+                    .filter(path -> path.getFileName().toString().endsWith(SEGMENT_FILE_SUFFIX))
+                    .sorted()
+                    .toList();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot list journal segments in %s".formatted(directory), e);
+        }
+    }
+
+    private Path segmentPathOf(final long number) {
+        return directory.resolve("%s%020d%s".formatted(SEGMENT_FILE_PREFIX, number, SEGMENT_FILE_SUFFIX));
+    }
+
+    private static long segmentNumberOf(final Path segmentPath) {
+        final String fileName = segmentPath.getFileName().toString();
+        return Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    private byte[] serialize(final JournalEntry journalEntry) {
+        try {
+            return objectMapper.writeValueAsBytes(journalEntry);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Cannot serialize journal entry of username=%s".formatted(journalEntry.transaction().getUsername()), e);
+        }
+    }
+
+    private JournalEntry deserialize(final byte[] entry) {
+        try {
+            return objectMapper.readValue(entry, JournalEntry.class);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Cannot deserialize journal entry", e);
+        }
+    }
+
+    public record JournalEntry(String yearMonth, TransactionEventDto transaction) {
+    }
+}
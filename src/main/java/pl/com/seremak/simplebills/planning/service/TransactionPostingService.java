@@ -1,22 +1,94 @@
 package pl.com.seremak.simplebills.planning.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
 import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.planning.repository.Revised;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+
+import static pl.com.seremak.simplebills.planning.utils.MetricsHelper.timedMono;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class TransactionPostingService {
 
+    public static final String PARTIAL_POSTING_ERROR_MSG = "Transaction for username=%s posted partially. %s update failed";
+
     private final BalanceService balanceService;
     private final CategoryUsageLimitService categoryUsageLimitService;
+    private final TransactionDeduplicationService transactionDeduplicationService;
+    private final WriteBehindDeltaAggregator writeBehindDeltaAggregator;
+    private final LiveUpdatesService liveUpdatesService;
+    private final TransactionJournal transactionJournal;
+    private final PostingGate postingGate;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Posts the transaction once. A redelivered transaction does not modify balance nor usage, current balance is returned instead.
+     * Redelivery is recognized by transactionId assigned by the producer. Null transactionId disables deduplication.
+     */
+    public Mono<Balance> postTransaction(final String transactionId, final TransactionEventDto transactionEventDto) {
+        return postingGate.guard(() -> transactionDeduplicationService.registerIfFirst(transactionId)
+                        .flatMap(isFirst -> isFirst ?
+                                postNewTransaction(transactionId, transactionEventDto) :
+                                skipDuplicatedTransaction(transactionEventDto)))
+                .transform(timedMono(meterRegistry, TransactionPostingService.class, "postTransaction"));
+    }
+
+    /**
+     * Usage limit and balance are updated concurrently. If both updates fail, the transaction is released, so it can be
+     * posted again. If only one fails, the transaction is completed as posted, because posting it again would
+     * apply the successful update twice. Such partial posting is reported with an error. Every completed transaction
+     * is appended to the journal, so replay can repair the failed update.
+     */
+    private Mono<Balance> postNewTransaction(final String transactionId, final TransactionEventDto transactionEventDto) {
+        if (writeBehindDeltaAggregator.isEnabled()) {
+            writeBehindDeltaAggregator.add(transactionEventDto);
+            transactionJournal.append(transactionEventDto);
+            return transactionDeduplicationService.complete(transactionId)
+                    .then(balanceService.findRevisedBalance(transactionEventDto.getUsername()))
+                    .doOnNext(liveUpdatesService::publishBalance)
+                    .map(Revised::entity);
+        }
+        return Mono.zip(
+                        categoryUsageLimitService.updateCategoryUsageLimitAfterNewTransaction(transactionEventDto)
+                                .doOnNext(liveUpdatesService::publishCategoryUsageLimit)
+                                .then()
+                                .materialize(),
+                        balanceService.updateBalance(transactionEventDto)
+                                .doOnNext(liveUpdatesService::publishBalance)
+                                .map(Revised::entity)
+                                .materialize())
+                .flatMap(results -> handlePostingResults(transactionId, transactionEventDto, results.getT1(), results.getT2()));
+    }
+
+    private Mono<Balance> handlePostingResults(final String transactionId,
+                                               final TransactionEventDto transactionEventDto,
+                                               final Signal<Void> usageLimitResult,
+                                               final Signal<Balance> balanceResult) {
+        if (usageLimitResult.isOnError() && balanceResult.isOnError()) {
+            return transactionDeduplicationService.release(transactionId)
+                    .then(Mono.error(balanceResult.getThrowable()));
+        }
+        transactionJournal.append(transactionEventDto);
+        if (!usageLimitResult.isOnError() && !balanceResult.isOnError()) {
+            return transactionDeduplicationService.complete(transactionId)
+                    .then(Mono.justOrEmpty(balanceResult.get()));
+        }
+        final Throwable error = usageLimitResult.isOnError() ? usageLimitResult.getThrowable() : balanceResult.getThrowable();
+        final String failedUpdate = usageLimitResult.isOnError() ? "CategoryUsageLimit" : "Balance";
+        log.error("Transaction posted partially. {} update failed for transaction={}", failedUpdate, transactionEventDto, error);
+        return transactionDeduplicationService.complete(transactionId)
+                .then(Mono.error(new IllegalStateException(PARTIAL_POSTING_ERROR_MSG.formatted(transactionEventDto.getUsername(), failedUpdate), error)));
+    }
 
-    public Mono<Balance> postTransaction(final TransactionEventDto transactionEventDto) {
-        return categoryUsageLimitService.updateCategoryUsageLimitAfterNewTransaction(transactionEventDto)
-                .then(balanceService.updateBalance(transactionEventDto));
+    private Mono<Balance> skipDuplicatedTransaction(final TransactionEventDto transactionEventDto) {
+        log.info("Duplicated transaction for username={} and categoryName={} skipped.", transactionEventDto.getUsername(), transactionEventDto.getCategoryName());
+        return balanceService.findBalance(transactionEventDto.getUsername());
     }
 }
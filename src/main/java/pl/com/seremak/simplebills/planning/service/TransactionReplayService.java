@@ -0,0 +1,198 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.exceptions.ConflictException;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit;
+import pl.com.seremak.simplebills.planning.repository.BalanceSearchRepository;
+import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository;
+import pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.UsageKey;
+import pl.com.seremak.simplebills.planning.service.TransactionJournal.JournalEntry;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.balanceDeltaOf;
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.usageDeltaOf;
+
+/**
+ * Rebuilds balances and usages from the transaction journal. Entries are partitioned by username, so all transactions
+ * of a user are summed on one rail, and rails run in parallel on all cores. Replayed values replace stored ones, so
+ * writing is allowed only when the journal is declared to hold the whole history (a single replica journaling since
+ * the first transaction) without retention, and posting is paused while replaying, so no concurrent increment is
+ * overwritten.
+ */
+@Slf4j
+@Service
+public class TransactionReplayService {
+
+    public static final String INCOMPLETE_HISTORY_ERROR_MSG =
+            "Transaction journal is not declared to hold the whole history, so replayed values cannot be written";
+
+    private final TransactionJournal transactionJournal;
+    private final TransactionBatchPostingService transactionBatchPostingService;
+    private final BalanceSearchRepository balanceSearchRepository;
+    private final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository;
+    private final BalanceCache balanceCache;
+    private final PostingGate postingGate;
+    private final WriteBehindDeltaAggregator writeBehindDeltaAggregator;
+    private final boolean completeHistory;
+    private final Duration pauseTimeout;
+    private final int parallelism;
+
+    public TransactionReplayService(final TransactionJournal transactionJournal,
+                                    final TransactionBatchPostingService transactionBatchPostingService,
+                                    final BalanceSearchRepository balanceSearchRepository,
+                                    final CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository,
+                                    final BalanceCache balanceCache,
+                                    final PostingGate postingGate,
+                                    final WriteBehindDeltaAggregator writeBehindDeltaAggregator,
+                                    @Value("${custom-properties.transaction-journal.complete-history:false}") final boolean completeHistory,
+                                    @Value("${custom-properties.transaction-journal.replay-pause-timeout:30s}") final Duration pauseTimeout,
+                                    @Value("${custom-properties.transaction-journal.replay-parallelism:0}") final int parallelism) {
+        if (completeHistory && transactionJournal.hasRetention()) {
+            throw new IllegalStateException("Transaction journal with retention cannot be declared to hold the whole history");
+        }
+        this.transactionJournal = transactionJournal;
+        this.transactionBatchPostingService = transactionBatchPostingService;
+        this.balanceSearchRepository = balanceSearchRepository;
+        this.categoryUsageLimitSearchRepository = categoryUsageLimitSearchRepository;
+        this.balanceCache = balanceCache;
+        this.postingGate = postingGate;
+        this.writeBehindDeltaAggregator = writeBehindDeltaAggregator;
+        this.completeHistory = completeHistory;
+        this.pauseTimeout = pauseTimeout;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Compares replayed values with stored ones and, unless it is a dry run, writes the replayed values with bulk writes.
+     * The report lists differences found before writing. A dry run does not pause posting, so it may report differences
+     * of transactions being posted. Before writing, posting is paused and write-behind deltas are flushed.
+     */
+    public Mono<ReplayReport> replay(final boolean dryRun) {
+        if (dryRun) {
+            return replayJournal(true);
+        }
+        if (!completeHistory) {
+            return Mono.error(new ConflictException(INCOMPLETE_HISTORY_ERROR_MSG));
+        }
+        return postingGate.close(pauseTimeout)
+                .then(Mono.defer(() -> writeBehindDeltaAggregator.flushAll(pauseTimeout)
+                        .then(replayJournal(false))
+                        .doFinally(signal -> postingGate.open())));
+    }
+
+    private Mono<ReplayReport> replayJournal(final boolean dryRun) {
+        final long replayStart = System.nanoTime();
+        return transactionJournal.readAll()
+                .groupBy(journalEntry -> Math.floorMod(journalEntry.transaction().getUsername().hashCode(), parallelism))
+                .flatMap(rail -> rail
+                        .publishOn(Schedulers.parallel())
+                        .reduce(new ReplayedTotals(), ReplayedTotals::add), parallelism)
+                .reduce(new ReplayedTotals(), ReplayedTotals::merge)
+                .flatMap(replayedTotals -> transactionBatchPostingService.prepareTrackedUsages(replayedTotals.usages)
+                        .flatMap(replayedUsages -> findDifferences(replayedTotals.balances, replayedUsages)
+                                .flatMap(differences -> dryRun ?
+                                        Mono.just(differences) :
+                                        write(replayedTotals.balances, replayedUsages).thenReturn(differences)))
+                        .map(differences -> prepareReport(dryRun, replayedTotals.events, Duration.ofNanos(System.nanoTime() - replayStart), differences)));
+    }
+
+    private Mono<List<Difference>> findDifferences(final Map<String, BigDecimal> replayedBalances,
+                                                   final List<CategoryUsageLimit> replayedUsages) {
+        if (replayedBalances.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        final Mono<Map<String, BigDecimal>> storedBalances = balanceSearchRepository.findBalances(replayedBalances.keySet())
+                .collectMap(Balance::getUsername, Balance::getBalance);
+        final Mono<Map<UsageKey, BigDecimal>> storedUsages = categoryUsageLimitSearchRepository.findCategoryUsageLimits(replayedBalances.keySet())
+                .collectMap(TransactionReplayService::usageKeyOf, CategoryUsageLimit::getUsage);
+        return Mono.zip(storedBalances, storedUsages)
+                .map(stored -> {
+                    final List<Difference> differences = new ArrayList<>();
+                    replayedBalances.forEach((username, replayedBalance) ->
+                            addIfDifferent(differences, new Difference(username, null, null, stored.getT1().get(username), replayedBalance)));
+                    replayedUsages.forEach(replayedUsage -> {
+                        final UsageKey usageKey = usageKeyOf(replayedUsage);
+                        addIfDifferent(differences, new Difference(usageKey.username(), usageKey.categoryName(), usageKey.yearMonth(),
+                                stored.getT2().get(usageKey), replayedUsage.getUsage()));
+                    });
+                    return differences;
+                });
+    }
+
+    private Mono<Void> write(final Map<String, BigDecimal> replayedBalances, final List<CategoryUsageLimit> replayedUsages) {
+        return Mono.when(
+                        balanceSearchRepository.setBalances(replayedBalances)
+                                .doOnNext(result -> log.info("Balances replayed: matched={}, upserted={}", result.getMatchedCount(), result.getUpserts().size()))
+                                .doFinally(signal -> balanceCache.invalidateAll(replayedBalances.keySet())),
+                        categoryUsageLimitSearchRepository.setUsages(replayedUsages)
+                                .doOnNext(result -> log.info("Usages replayed: matched={}, upserted={}", result.getMatchedCount(), result.getUpserts().size())));
+    }
+
+    private static ReplayReport prepareReport(final boolean dryRun,
+                                              final long events,
+                                              final Duration duration,
+                                              final List<Difference> differences) {
+        final long eventsPerSecond = duration.isZero() ? events : events * 1_000_000_000L / duration.toNanos();
+        log.info("{} journal entries replayed in {} ms ({} events/s), {} differences found, dryRun={}",
+                events, duration.toMillis(), eventsPerSecond, differences.size(), dryRun);
+        return new ReplayReport(dryRun, events, eventsPerSecond, differences);
+    }
+
+    private static void addIfDifferent(final List<Difference> differences, final Difference difference) {
+        if (isNull(difference.stored()) || difference.stored().compareTo(difference.replayed()) != 0) {
+            differences.add(difference);
+        }
+    }
+
+    private static UsageKey usageKeyOf(final CategoryUsageLimit categoryUsageLimit) {
+        return new UsageKey(categoryUsageLimit.getUsername(), categoryUsageLimit.getCategoryName(), categoryUsageLimit.getYearMonth());
+    }
+
+    /**
+     * Totals of one rail. Each rail is reduced on a single thread, and rails hold disjoint users, so merging is a plain union.
+     */
+    private static class ReplayedTotals {
+
+        private final Map<String, BigDecimal> balances = new HashMap<>();
+        private final Map<UsageKey, BigDecimal> usages = new HashMap<>();
+        private long events;
+
+        private ReplayedTotals add(final JournalEntry journalEntry) {
+            final TransactionEventDto transactionEventDto = journalEntry.transaction();
+            balances.merge(transactionEventDto.getUsername(), balanceDeltaOf(transactionEventDto), BigDecimal::add);
+            usages.merge(new UsageKey(transactionEventDto.getUsername(), transactionEventDto.getCategoryName(), journalEntry.yearMonth()),
+                    usageDeltaOf(transactionEventDto), BigDecimal::add);
+            events++;
+            return this;
+        }
+
+        private ReplayedTotals merge(final ReplayedTotals railTotals) {
+            balances.putAll(railTotals.balances);
+            usages.putAll(railTotals.usages);
+            events += railTotals.events;
+            return this;
+        }
+    }
+
+    /**
+     * Difference of a balance, when categoryName and yearMonth are null, or of a usage. Stored value is null if missing.
+     */
+    public record Difference(String username, String categoryName, String yearMonth, BigDecimal stored, BigDecimal replayed) {
+    }
+
+    public record ReplayReport(boolean dryRun, long events, long eventsPerSecond, List<Difference> differences) {
+    }
+}
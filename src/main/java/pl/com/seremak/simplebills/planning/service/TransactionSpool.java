@@ -0,0 +1,368 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.model.Balance;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Spills transactions to a local append-only file when too many postings are in flight, e.g. when the database is slow.
+ * Once anything is spooled, following transactions are spooled too, so they are posted in the order of arrival.
+ * The drainer re-feeds spooled transactions while in-flight postings stay below the resume threshold, so heap holds
+ * at most spill threshold postings however long the outage lasts. Transactions are encoded with Smile, a binary
+ * form of JSON, together with their ids, so drained transactions are still deduplicated. Each record is forced
+ * to disk before it is acknowledged. The read offset is advanced past a record only after its posting succeeds, and
+ * it is saved after each drain pass, so after a crash transactions posted since the last pass are posted again and
+ * are skipped by deduplication. When a posting fails, the record and all following ones stay in the spool, and the
+ * next passes drain a single record until a posting succeeds again, so an outage is not flooded with postings.
+ * A record cut by a crash is truncated on open, and a record which cannot be decoded is moved to the quarantine file.
+ * The directory must be an absolute path, so the spool does not depend on the working directory.
+ */
+@Slf4j
+@Service
+public class TransactionSpool {
+
+    private static final String SPOOL_FILE_NAME = "transactions.spool";
+    private static final String OFFSET_FILE_NAME = "transactions.spool.offset";
+    private static final String QUARANTINE_FILE_NAME = "transactions.spool.quarantine";
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    private final PartitionedTransactionExecutor partitionedTransactionExecutor;
+    private final boolean enabled;
+    private final Path directory;
+    private final int spillThreshold;
+    private final int resumeThreshold;
+    private final Duration drainInterval;
+    private final int maxRecordSize;
+    private final ObjectMapper smileMapper;
+    private final AtomicInteger inFlightPostings = new AtomicInteger();
+    private final Counter spooledCounter;
+    private final Counter quarantinedCounter;
+    private FileChannel spoolChannel;
+    private FileChannel offsetChannel;
+    private FileChannel quarantineChannel;
+    private long readOffset;
+    private boolean postingFailed;
+    private Disposable drainer;
+
+    public TransactionSpool(final PartitionedTransactionExecutor partitionedTransactionExecutor,
+                            final MeterRegistry meterRegistry,
+                            @Value("${custom-properties.transaction-spool.enabled:false}") final boolean enabled,
+                            @Value("${custom-properties.transaction-spool.directory:}") final String directory,
+                            @Value("${custom-properties.transaction-spool.spill-threshold:1000}") final int spillThreshold,
+                            @Value("${custom-properties.transaction-spool.resume-threshold:500}") final int resumeThreshold,
+                            @Value("${custom-properties.transaction-spool.drain-interval:100ms}") final Duration drainInterval,
+                            @Value("${custom-properties.transaction-spool.max-record-size:64KB}") final DataSize maxRecordSize) {
+        this.partitionedTransactionExecutor = partitionedTransactionExecutor;
+        this.enabled = enabled;
+        this.directory = directory.isBlank() ? null : Path.of(directory);
+        this.spillThreshold = spillThreshold;
+        this.resumeThreshold = resumeThreshold;
+        this.drainInterval = drainInterval;
+        this.maxRecordSize = Math.toIntExact(maxRecordSize.toBytes());
+        this.smileMapper = SmileMapper.builder()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .addModule(new JavaTimeModule())
+                .build();
+        this.spooledCounter = Counter.builder("planning.transaction.spool.spooled")
+                .register(meterRegistry);
+        this.quarantinedCounter = Counter.builder("planning.transaction.spool.quarantined")
+                .register(meterRegistry);
+        Gauge.builder("planning.transaction.in.flight", inFlightPostings, AtomicInteger::get)
+                .register(meterRegistry);
+        Gauge.builder("planning.transaction.spool.size", this, TransactionSpool::spooledBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Transactions left in the spool by the previous run are drained first.
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (isNull(directory) || !directory.isAbsolute()) {
+            throw new IllegalStateException("Transaction spool is enabled, so its directory must be an absolute path, but is: %s".formatted(directory));
+        }
+        Files.createDirectories(directory);
+        spoolChannel = FileChannel.open(directory.resolve(SPOOL_FILE_NAME), CREATE, READ, WRITE);
+        offsetChannel = FileChannel.open(directory.resolve(OFFSET_FILE_NAME), CREATE, READ, WRITE);
+        quarantineChannel = FileChannel.open(directory.resolve(QUARANTINE_FILE_NAME), CREATE, WRITE, APPEND);
+        final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+        readOffset = offsetChannel.read(offset, 0) == Long.BYTES ? offset.flip().getLong() : 0;
+        truncateTornTail();
+        drainer = Flux.interval(drainInterval)
+                .onBackpressureDrop()
+                .concatMap(__ -> Mono.fromRunnable(this::drain)
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .onErrorResume(error -> {
+                            log.error("Draining transaction spool failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe();
+        log.info("Transaction spool opened in {} with {} bytes to drain.", directory, spooledBytes());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        drainer.dispose();
+        spoolChannel.force(true);
+        spoolChannel.close();
+        offsetChannel.close();
+        quarantineChannel.close();
+    }
+
+    /**
+     * Posts the transaction, or spools it if too many postings are in flight or the spool is not drained yet.
+     * Returned Mono completes when the transaction is posted or spooled. Like
+     * {@link PartitionedTransactionExecutor#submit(String, TransactionEventDto)}, it may block the calling thread,
+     * but never while holding the spool lock.
+     */
+    public Mono<Balance> submit(final String transactionId, final TransactionEventDto transactionEventDto) {
+        if (!enabled) {
+            return partitionedTransactionExecutor.submit(transactionId, transactionEventDto);
+        }
+        final IdentifiedTransaction identifiedTransaction = new IdentifiedTransaction(transactionId, transactionEventDto);
+        synchronized (this) {
+            if (spooledBytes() > 0 || inFlightPostings.get() >= spillThreshold) {
+                append(identifiedTransaction);
+                return Mono.empty();
+            }
+            inFlightPostings.incrementAndGet();
+        }
+        return post(identifiedTransaction);
+    }
+
+    /**
+     * Records are read under the lock and posted outside of it, so a full lane does not block spooling. The read offset
+     * stays before them until their postings finish, so new transactions are still spooled and cannot overtake drained
+     * ones. Then the offset is advanced past the records posted successfully, up to the first failed one. A record which
+     * cannot be decoded is quarantined only when all records before it are posted, so it is never quarantined twice.
+     */
+    private void drain() {
+        final List<SpooledRecord> drainedRecords = new ArrayList<>();
+        synchronized (this) {
+            final long drainStartOffset = readOffset;
+            final int drainLimit = postingFailed ? 1 : resumeThreshold - inFlightPostings.get();
+            long drainOffset = readOffset;
+            while (drainOffset < spoolSize() && drainedRecords.size() < drainLimit) {
+                final SpooledRecord spooledRecord = readRecord(drainOffset);
+                if (isNull(spooledRecord.transaction())) {
+                    if (!drainedRecords.isEmpty()) {
+                        break;
+                    }
+                    quarantine(spooledRecord);
+                    readOffset = spooledRecord.endOffset();
+                } else {
+                    drainedRecords.add(spooledRecord);
+                }
+                drainOffset = spooledRecord.endOffset();
+            }
+            if (drainedRecords.isEmpty()) {
+                if (readOffset != drainStartOffset) {
+                    saveReadOffset();
+                }
+                return;
+            }
+            inFlightPostings.addAndGet(drainedRecords.size());
+        }
+        final List<Boolean> postedRecords = Flux.fromIterable(drainedRecords)
+                .flatMapSequential(spooledRecord -> post(spooledRecord.transaction())
+                        .then(Mono.just(true))
+                        .onErrorResume(error -> {
+                            log.error("Spooled transaction posting for username={} failed: {}",
+                                    spooledRecord.transaction().transaction().getUsername(), error.getMessage());
+                            return Mono.just(false);
+                        }), drainedRecords.size())
+                .collectList()
+                .block();
+        final int postedCount = postedRecords.indexOf(false) < 0 ? postedRecords.size() : postedRecords.indexOf(false);
+        synchronized (this) {
+            if (postedCount > 0) {
+                readOffset = drainedRecords.get(postedCount - 1).endOffset();
+                saveReadOffset();
+            }
+            if (postedCount < drainedRecords.size() && !postingFailed) {
+                log.warn("Draining transaction spool paused at offset={}, a single record is drained until a posting succeeds.", readOffset);
+            } else if (postedCount > 0 && postingFailed) {
+                log.info("Draining transaction spool resumed at offset={}.", readOffset);
+            }
+            postingFailed = postedCount < drainedRecords.size();
+        }
+        log.info("{} of {} spooled transactions drained, {} bytes left.", postedCount, drainedRecords.size(), spooledBytes());
+    }
+
+    /**
+     * Posting is counted as in flight by the caller, under the spool lock.
+     */
+    private Mono<Balance> post(final IdentifiedTransaction identifiedTransaction) {
+        return partitionedTransactionExecutor.submit(identifiedTransaction.transactionId(), identifiedTransaction.transaction())
+                .doFinally(signal -> inFlightPostings.decrementAndGet());
+    }
+
+    private void append(final IdentifiedTransaction identifiedTransaction) {
+        try {
+            final byte[] transaction = smileMapper.writeValueAsBytes(identifiedTransaction);
+            if (transaction.length > maxRecordSize) {
+                throw new IllegalArgumentException("Transaction of %d bytes exceeds spool record size".formatted(transaction.length));
+            }
+            final ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + transaction.length)
+                    .putInt(transaction.length)
+                    .put(transaction)
+                    .flip();
+            long position = spoolChannel.size();
+            while (record.hasRemaining()) {
+                position += spoolChannel.write(record, position);
+            }
+            spoolChannel.force(false);
+            spooledCounter.increment();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot spool transaction of username=%s".formatted(identifiedTransaction.transaction().getUsername()), e);
+        }
+    }
+
+    /**
+     * Transaction of the returned record is null if it cannot be decoded. Invalid length means the rest of the spool
+     * cannot be framed, so the record spans all of it.
+     */
+    private SpooledRecord readRecord(final long recordOffset) {
+        try {
+            final int length = readFully(LENGTH_SIZE, recordOffset).getInt();
+            if (!isValidRecordLength(length, recordOffset)) {
+                return new SpooledRecord(recordOffset, spoolSize(), null, "invalid record length=%d".formatted(length));
+            }
+            final long endOffset = recordOffset + LENGTH_SIZE + length;
+            final ByteBuffer transaction = readFully(length, recordOffset + LENGTH_SIZE);
+            try {
+                return new SpooledRecord(recordOffset, endOffset, smileMapper.readValue(transaction.array(), IdentifiedTransaction.class), null);
+            } catch (final IOException e) {
+                return new SpooledRecord(recordOffset, endOffset, null, e.getMessage());
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot read spooled transaction at offset=%d".formatted(recordOffset), e);
+        }
+    }
+
+    private void quarantine(final SpooledRecord spooledRecord) {
+        try {
+            final ByteBuffer record = readFully(Math.toIntExact(spooledRecord.endOffset() - spooledRecord.offset()), spooledRecord.offset());
+            while (record.hasRemaining()) {
+                quarantineChannel.write(record);
+            }
+            quarantineChannel.force(false);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot quarantine spooled record at offset=%d".formatted(spooledRecord.offset()), e);
+        }
+        quarantinedCounter.increment();
+        log.error("Spooled record at offset={} moved to {}: {}", spooledRecord.offset(), QUARANTINE_FILE_NAME, spooledRecord.error());
+    }
+
+    /**
+     * Drops the record cut by a crash during appending, so draining does not stop at it. Records are walked from the
+     * read offset by their lengths; the spool is truncated at the first record which does not fit in the file.
+     */
+    private void truncateTornTail() throws IOException {
+        final long spoolSize = spoolChannel.size();
+        if (readOffset > spoolSize) {
+            log.warn("Spool read offset={} is beyond spool size={}, spool is treated as drained.", readOffset, spoolSize);
+            readOffset = spoolSize;
+        }
+        long recordOffset = readOffset;
+        while (spoolSize - recordOffset >= LENGTH_SIZE) {
+            final int length = readFully(LENGTH_SIZE, recordOffset).getInt();
+            if (!isValidRecordLength(length, recordOffset)) {
+                break;
+            }
+            recordOffset += LENGTH_SIZE + length;
+        }
+        if (recordOffset < spoolSize) {
+            log.warn("Torn spool tail of {} bytes at offset={} truncated.", spoolSize - recordOffset, recordOffset);
+            spoolChannel.truncate(recordOffset);
+            spoolChannel.force(true);
+        }
+    }
+
+    private boolean isValidRecordLength(final int length, final long recordOffset) throws IOException {
+        return length > 0 && length <= maxRecordSize && recordOffset + LENGTH_SIZE + length <= spoolChannel.size();
+    }
+
+    private ByteBuffer readFully(final int size, final long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (spoolChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Spool ends before the record at offset=%d".formatted(position));
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Fully drained spool is truncated, so the file does not grow beyond one outage. The offset is reset before
+     * truncating, so a crash in between makes the spool drained again instead of corrupting it.
+     */
+    private void saveReadOffset() {
+        try {
+            final boolean drained = readOffset == spoolChannel.size();
+            offsetChannel.write(ByteBuffer.allocate(Long.BYTES).putLong(drained ? 0 : readOffset).flip(), 0);
+            if (drained) {
+                spoolChannel.truncate(0);
+                readOffset = 0;
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot save spool offset=%d".formatted(readOffset), e);
+        }
+    }
+
+    private long spooledBytes() {
+        return nonNull(spoolChannel) && spoolChannel.isOpen() ? spoolSize() - readOffset : 0;
+    }
+
+    private long spoolSize() {
+        try {
+            return spoolChannel.size();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot read size of transaction spool", e);
+        }
+    }
+
+    private record SpooledRecord(long offset, long endOffset, IdentifiedTransaction transaction, String error) {
+    }
+}
@@ -0,0 +1,111 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.planning.messageQueue.MessagePublisher;
+import pl.com.seremak.simplebills.planning.repository.CategorySearchRepository;
+import pl.com.seremak.simplebills.planning.repository.Revised;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static pl.com.seremak.simplebills.planning.utils.BillPlanConstants.MASTER_USER;
+import static pl.com.seremak.simplebills.planning.utils.ETagHelper.prepareCollectionETag;
+
+/**
+ * Categories of each user, loaded with one query and evicted by size and TTL. Every change of user's categories
+ * invalidates the entry on all replicas through {@link MessagePublisher#sendCategoryCacheInvalidationMessage(String)}.
+ */
+@Slf4j
+@Service
+public class UserCategoriesCache {
+
+    private final CategorySearchRepository categorySearchRepository;
+    private final MessagePublisher messagePublisher;
+    private final StandardCategoriesTemplate standardCategoriesTemplate;
+    private final AsyncCache<String, UserCategories> categoriesByUsername;
+
+    public UserCategoriesCache(final CategorySearchRepository categorySearchRepository,
+                               final MessagePublisher messagePublisher,
+                               final StandardCategoriesTemplate standardCategoriesTemplate,
+                               final MeterRegistry meterRegistry,
+                               @Value("${custom-properties.category-cache.max-size:10000}") final long maxSize,
+                               @Value("${custom-properties.category-cache.ttl:10m}") final Duration ttl) {
+        this.categorySearchRepository = categorySearchRepository;
+        this.messagePublisher = messagePublisher;
+        this.standardCategoriesTemplate = standardCategoriesTemplate;
+        this.categoriesByUsername = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, categoriesByUsername, "userCategories");
+    }
+
+    public Mono<List<Category>> findCategories(final String username) {
+        return findUserCategories(username)
+                .map(UserCategories::categories);
+    }
+
+    /**
+     * ETags are derived from versions of category documents when categories are loaded, so conditional requests
+     * are answered from the cache.
+     */
+    public Mono<UserCategories> findUserCategories(final String username) {
+        return Mono.fromFuture(() -> categoriesByUsername.get(username, (key, executor) ->
+                categorySearchRepository.findRevisedCategories(key)
+                        .collectList()
+                        .map(UserCategoriesCache::toUserCategories)
+                        .toFuture()));
+    }
+
+    public Flux<Category> findCategoriesByName(final String username, final String categoryName) {
+        return findCategories(username)
+                .flatMapIterable(categories -> categories)
+                .filter(category -> categoryName.equals(category.getName()));
+    }
+
+    /**
+     * Invalidates categories of given user on this and on other replicas.
+     */
+    public void invalidate(final String username) {
+        invalidateLocally(username);
+        messagePublisher.sendCategoryCacheInvalidationMessage(username);
+    }
+
+    /**
+     * Changes of master user categories also refresh the standard categories template.
+     */
+    public void invalidateLocally(final String username) {
+        categoriesByUsername.synchronous().invalidate(username);
+        log.debug("Categories cache for username={} invalidated.", username);
+        if (MASTER_USER.equals(username)) {
+            standardCategoriesTemplate.refresh().subscribe();
+        }
+    }
+
+    private static UserCategories toUserCategories(final List<Revised<Category>> revisedCategories) {
+        final List<Category> categories = revisedCategories.stream()
+                .map(Revised::entity)
+                .toList();
+        final Map<String, String> versionsByName = revisedCategories.stream()
+                .collect(Collectors.toMap(revisedCategory -> revisedCategory.entity().getName(), Revised::version, (first, second) -> first));
+        final String eTag = prepareCollectionETag(revisedCategories.stream()
+                .map(Revised::version)
+                .toList());
+        return new UserCategories(categories, versionsByName, eTag);
+    }
+
+    public record UserCategories(List<Category> categories, Map<String, String> versionsByName, String eTag) {
+    }
+}
@@ -1,20 +1,56 @@
 package pl.com.seremak.simplebills.planning.service;
 
 
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class UserSetupService {
 
     private final CategoryService categoryService;
+    private final CategoryUsageLimitService categoryUsageLimitService;
     private final BalanceService balanceService;
+    private final Timer onboardingBatchTimer;
+
+    public UserSetupService(final CategoryService categoryService,
+                            final CategoryUsageLimitService categoryUsageLimitService,
+                            final BalanceService balanceService,
+                            final MeterRegistry meterRegistry) {
+        this.categoryService = categoryService;
+        this.categoryUsageLimitService = categoryUsageLimitService;
+        this.balanceService = balanceService;
+        this.onboardingBatchTimer = Timer.builder("planning.user.onboarding.batch")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Sets up a batch of users with bulk writes: standard categories, their CategoryUsageLimits and clear balances.
+     * Setting up already existing user does not modify its data.
+     */
+    public Mono<Void> setupUsers(final Collection<String> usernames) {
+        final List<String> distinctUsernames = usernames.stream()
+                .distinct()
+                .toList();
+        final long start = System.nanoTime();
+        return Mono.when(
+                        categoryService.createStandardCategoriesForUsersIfNotExist(distinctUsernames)
+                                .flatMap(categoryUsageLimitService::createCategoryUsageLimits),
+                        balanceService.createClearBalancesIfNotExist(distinctUsernames))
+                .doOnSuccess(__ -> logOnboardingThroughput(distinctUsernames.size(), System.nanoTime() - start));
+    }
 
-    public void setupUser(final String username) {
-        categoryService.createStandardCategoriesForUserIfNotExists(username).block();
-        balanceService.createNewClearBalance(username).block();
+    private void logOnboardingThroughput(final int usersCount, final long durationNanos) {
+        onboardingBatchTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+        final double durationMillis = durationNanos / 1_000_000d;
+        log.info("Batch of {} users set up in {} ms ({} users/s)", usersCount, Math.round(durationMillis),
+                Math.round(usersCount * 1000 / Math.max(durationMillis, 1)));
     }
 }
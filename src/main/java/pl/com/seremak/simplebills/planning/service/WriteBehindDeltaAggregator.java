@@ -0,0 +1,199 @@
+package pl.com.seremak.simplebills.planning.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.UsageKey;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static java.math.BigDecimal.ZERO;
+import static java.util.Objects.nonNull;
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.balanceDeltaOf;
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.usageDeltaOf;
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.usageKeyOf;
+
+/**
+ * Write-behind mode of transaction posting. Usage and balance deltas are summed in concurrent maps (locked per bin,
+ * so posting for different users does not contend) and flushed as combined increments every flush interval
+ * or when the number of pending deltas reaches the threshold. Pending deltas are flushed on shutdown.
+ */
+@Slf4j
+@Service
+public class WriteBehindDeltaAggregator {
+
+    private static final String UNFLUSHED_DELTAS_ERROR_MSG = "Deltas are still unflushed";
+    private static final Duration FLUSH_RETRY_DELAY = Duration.ofMillis(100);
+
+    private final TransactionBatchPostingService transactionBatchPostingService;
+    private final boolean enabled;
+    private final Duration flushInterval;
+    private final int maxPendingDeltas;
+    private final Duration shutdownTimeout;
+    private final Map<UsageKey, BigDecimal> pendingUsageDeltas = new ConcurrentHashMap<>();
+    private final Map<String, BigDecimal> pendingBalanceDeltas = new ConcurrentHashMap<>();
+    private final Map<String, BigDecimal> flushingBalanceDeltas = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushInProgress = new AtomicBoolean();
+    private Disposable scheduledFlush;
+
+    public WriteBehindDeltaAggregator(final TransactionBatchPostingService transactionBatchPostingService,
+                                      @Value("${custom-properties.write-behind.enabled:false}") final boolean enabled,
+                                      @Value("${custom-properties.write-behind.flush-interval:1s}") final Duration flushInterval,
+                                      @Value("${custom-properties.write-behind.max-pending-deltas:1000}") final int maxPendingDeltas,
+                                      @Value("${custom-properties.write-behind.shutdown-timeout:30s}") final Duration shutdownTimeout) {
+        this.transactionBatchPostingService = transactionBatchPostingService;
+        this.enabled = enabled;
+        this.flushInterval = flushInterval;
+        this.maxPendingDeltas = maxPendingDeltas;
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    @PostConstruct
+    public void startScheduledFlush() {
+        if (enabled) {
+            scheduledFlush = Flux.interval(flushInterval)
+                    .onBackpressureDrop()
+                    .concatMap(__ -> flush())
+                    .subscribe();
+            log.info("Write-behind posting enabled with flushInterval={} and maxPendingDeltas={}", flushInterval, maxPendingDeltas);
+        }
+    }
+
+    /**
+     * Waits for a flush in progress and retries failed flushes until all deltas are persisted or the shutdown timeout
+     * passes. Deltas left after the timeout are lost, so they are logged as an error.
+     */
+    @PreDestroy
+    public void flushOnShutdown() {
+        if (!enabled) {
+            return;
+        }
+        scheduledFlush.dispose();
+        try {
+            flushAll(shutdownTimeout).block();
+            log.info("Pending deltas flushed on shutdown.");
+        } catch (final RuntimeException e) {
+            log.error("Deltas not flushed on shutdown and lost: usageDeltas={}, pendingBalanceDeltas={}, flushingBalanceDeltas={}. Cause: {}",
+                    pendingUsageDeltas, pendingBalanceDeltas, flushingBalanceDeltas, e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void add(final TransactionEventDto transactionEventDto) {
+        pendingUsageDeltas.merge(usageKeyOf(transactionEventDto), usageDeltaOf(transactionEventDto), BigDecimal::add);
+        pendingBalanceDeltas.merge(transactionEventDto.getUsername(), balanceDeltaOf(transactionEventDto), BigDecimal::add);
+        if (pendingUsageDeltas.size() + pendingBalanceDeltas.size() >= maxPendingDeltas) {
+            flush().subscribe();
+        }
+    }
+
+    /**
+     * Both deltas are read under the lock of the pending entry, which is the lock held while a delta is moved from
+     * pending to flushing, so a delta being drained is seen exactly once.
+     */
+    public Optional<BigDecimal> findUnflushedBalanceDelta(final String username) {
+        final AtomicReference<BigDecimal> unflushedDelta = new AtomicReference<>();
+        pendingBalanceDeltas.compute(username, (__, pendingDelta) -> {
+            final BigDecimal flushingDelta = flushingBalanceDeltas.get(username);
+            if (nonNull(pendingDelta) || nonNull(flushingDelta)) {
+                unflushedDelta.set(ZERO
+                        .add(nonNull(pendingDelta) ? pendingDelta : ZERO)
+                        .add(nonNull(flushingDelta) ? flushingDelta : ZERO));
+            }
+            return pendingDelta;
+        });
+        return Optional.ofNullable(unflushedDelta.get());
+    }
+
+    /**
+     * Deltas being written stay visible to reads until the write completes. Usage and balance deltas are written
+     * separately, so only deltas of the failed write are returned to pending deltas and retried with the next flush.
+     */
+    public Mono<Void> flush() {
+        return Mono.defer(() -> {
+            if (!flushInProgress.compareAndSet(false, true)) {
+                return Mono.empty();
+            }
+            final Map<UsageKey, BigDecimal> usageDeltas = drain(pendingUsageDeltas, (usageKey, delta) -> {});
+            final Map<String, BigDecimal> balanceDeltas = drain(pendingBalanceDeltas,
+                    (username, delta) -> flushingBalanceDeltas.merge(username, delta, BigDecimal::add));
+            if (usageDeltas.isEmpty() && balanceDeltas.isEmpty()) {
+                flushInProgress.set(false);
+                return Mono.empty();
+            }
+            return Mono.when(
+                            transactionBatchPostingService.applyUsageDeltas(usageDeltas)
+                                    .doOnSuccess(__ -> log.info("{} usage deltas flushed.", usageDeltas.size()))
+                                    .onErrorResume(error -> returnToPending("usage", usageDeltas, pendingUsageDeltas, error)),
+                            transactionBatchPostingService.applyBalanceDeltas(balanceDeltas)
+                                    .doOnSuccess(__ -> log.info("{} balance deltas flushed.", balanceDeltas.size()))
+                                    .onErrorResume(error -> returnToPending("balance", balanceDeltas, pendingBalanceDeltas, error)))
+                    .doFinally(signal -> {
+                        balanceDeltas.forEach((username, delta) -> flushingBalanceDeltas.computeIfPresent(username,
+                                (__, flushingDelta) -> flushingDelta.subtract(delta).signum() == 0 ? null : flushingDelta.subtract(delta)));
+                        flushInProgress.set(false);
+                    });
+        });
+    }
+
+    private static <K> Mono<Void> returnToPending(final String deltaType,
+                                                  final Map<K, BigDecimal> failedDeltas,
+                                                  final Map<K, BigDecimal> pendingDeltas,
+                                                  final Throwable error) {
+        log.error("Flushing {} {} deltas failed. They will be retried with the next flush: {}", failedDeltas.size(), deltaType, error.getMessage());
+        failedDeltas.forEach((key, delta) -> pendingDeltas.merge(key, delta, BigDecimal::add));
+        return Mono.empty();
+    }
+
+    /**
+     * Flushes until no delta is pending nor being written. Failed flushes are retried, so it completes only when all
+     * deltas are persisted, or emits an error when the timeout passes first.
+     */
+    public Mono<Void> flushAll(final Duration timeout) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return flush()
+                .then(Mono.defer(() -> hasUnflushedDeltas() ?
+                        Mono.error(new IllegalStateException(UNFLUSHED_DELTAS_ERROR_MSG)) :
+                        Mono.<Void>empty()))
+                .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, FLUSH_RETRY_DELAY))
+                .timeout(timeout);
+    }
+
+    private boolean hasUnflushedDeltas() {
+        return flushInProgress.get() || !pendingUsageDeltas.isEmpty() || !pendingBalanceDeltas.isEmpty() || !flushingBalanceDeltas.isEmpty();
+    }
+
+    /**
+     * Each delta is handed to beforeRemoval, e.g. merged into flushing deltas, before it is removed from pending ones,
+     * within the atomic update of the pending entry, so a concurrent read sees it in one of the maps.
+     */
+    private static <K> Map<K, BigDecimal> drain(final Map<K, BigDecimal> pendingDeltas, final BiConsumer<K, BigDecimal> beforeRemoval) {
+        final Map<K, BigDecimal> drainedDeltas = new HashMap<>();
+        pendingDeltas.keySet().forEach(key -> pendingDeltas.computeIfPresent(key, (__, delta) -> {
+            beforeRemoval.accept(key, delta);
+            drainedDeltas.merge(key, delta, BigDecimal::add);
+            return null;
+        }));
+        return drainedDeltas;
+    }
+}
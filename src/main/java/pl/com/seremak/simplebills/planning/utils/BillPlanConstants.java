@@ -3,4 +3,6 @@ package pl.com.seremak.simplebills.planning.utils;
 public class BillPlanConstants {
 
     public static final String MASTER_USER = "master_user";
+    public static final String CATEGORY_CACHE_INVALIDATION_ROUTING_KEY = "planning.category-cache-invalidation";
+    public static final String TOTAL_CATEGORY_NAME = "total";
 }
@@ -0,0 +1,80 @@
+package pl.com.seremak.simplebills.planning.utils;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ETagHelper {
+
+    private static final String WEAK_PREFIX = "W/";
+    private static final String ANY_ETAG = "*";
+
+    /**
+     * Strong ETag, which is a digest of the versions the resource is built from, e.g. revisions of its documents.
+     * Nothing is serialized, so the ETag can be checked before the body is written, and it does not depend on
+     * metadata set while the resource is read.
+     */
+    public static String prepareETag(final Object... versionParts) {
+        return digest(Stream.of(versionParts)
+                .map(String::valueOf)
+                .collect(Collectors.joining("|")));
+    }
+
+    /**
+     * ETag of a collection resource. Versions are sorted, so it does not depend on the order of documents.
+     */
+    public static String prepareCollectionETag(final Collection<String> versions) {
+        return digest(versions.stream()
+                .sorted()
+                .collect(Collectors.joining("|")));
+    }
+
+    public static boolean isNotModified(final HttpHeaders requestHeaders, final String eTag) {
+        return requestHeaders.getIfNoneMatch().stream()
+                .map(ETagHelper::stripWeakPrefix)
+                .anyMatch(requestedETag -> ANY_ETAG.equals(requestedETag) || eTag.equals(requestedETag));
+    }
+
+    public static <T> ResponseEntity<T> prepareNotModifiedResponse(final String eTag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(eTag)
+                .build();
+    }
+
+    /**
+     * Returns 304 without body if the client already has the current version of the resource.
+     */
+    public static <T> ResponseEntity<T> prepareConditionalResponse(final HttpHeaders requestHeaders, final String eTag, final T body) {
+        return isNotModified(requestHeaders, eTag) ?
+                prepareNotModifiedResponse(eTag) :
+                ResponseEntity.ok().eTag(eTag).body(body);
+    }
+
+    public static <T> ResponseEntity<T> prepareConditionalResponse(final HttpHeaders requestHeaders, final ETagged<T> resource) {
+        return prepareConditionalResponse(requestHeaders, resource.eTag(), resource.body());
+    }
+
+    private static String digest(final String versions) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(versions.getBytes(StandardCharsets.UTF_8));
+            return "\"%s\"".formatted(HexFormat.of().formatHex(digest, 0, 16));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot prepare ETag", e);
+        }
+    }
+
+    private static String stripWeakPrefix(final String eTag) {
+        return eTag.startsWith(WEAK_PREFIX) ? eTag.substring(WEAK_PREFIX.length()) : eTag;
+    }
+
+    public record ETagged<T>(T body, String eTag) {
+    }
+}
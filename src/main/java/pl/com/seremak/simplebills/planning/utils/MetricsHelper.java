@@ -0,0 +1,107 @@
+package pl.com.seremak.simplebills.planning.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+
+public class MetricsHelper {
+
+    public static final String SERVICE_TIMER = "planning.service";
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_EMPTY = "empty";
+    public static final String OUTCOME_ERROR = "error";
+    public static final String OUTCOME_CANCELLED = "cancelled";
+    private static final String NO_EXCEPTION = "none";
+    private static final Map<TimerKey, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    /**
+     * Times a service call, tagged with class and method.
+     */
+    public static <T> Function<Mono<T>, Mono<T>> timedMono(final MeterRegistry meterRegistry,
+                                                           final Class<?> serviceClass,
+                                                           final String method) {
+        return timedMono(meterRegistry, SERVICE_TIMER, serviceTags(serviceClass, method));
+    }
+
+    public static <T> Function<Flux<T>, Flux<T>> timedFlux(final MeterRegistry meterRegistry,
+                                                           final Class<?> serviceClass,
+                                                           final String method) {
+        return timedFlux(meterRegistry, SERVICE_TIMER, serviceTags(serviceClass, method));
+    }
+
+    /**
+     * Records the time from subscription until the Mono terminates. The timer is additionally tagged with the outcome
+     * (success, empty, error or cancelled) and the exception, so its count is the number of calls per outcome.
+     */
+    public static <T> Function<Mono<T>, Mono<T>> timedMono(final MeterRegistry meterRegistry, final String name, final Tags tags) {
+        return mono -> Mono.defer(() -> {
+            final Timer.Sample sample = Timer.start(meterRegistry);
+            final AtomicBoolean emitted = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            return mono
+                    .doOnNext(__ -> emitted.set(true))
+                    .doOnError(error::set)
+                    .doFinally(signal -> sample.stop(prepareTimer(meterRegistry, name, tags, signal, emitted.get(), error.get())));
+        });
+    }
+
+    /**
+     * Like {@link #timedMono(MeterRegistry, String, Tags)}, the time is measured until the last element is emitted.
+     */
+    public static <T> Function<Flux<T>, Flux<T>> timedFlux(final MeterRegistry meterRegistry, final String name, final Tags tags) {
+        return flux -> Flux.defer(() -> {
+            final Timer.Sample sample = Timer.start(meterRegistry);
+            final AtomicBoolean emitted = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            return flux
+                    .doOnNext(__ -> emitted.set(true))
+                    .doOnError(error::set)
+                    .doFinally(signal -> sample.stop(prepareTimer(meterRegistry, name, tags, signal, emitted.get(), error.get())));
+        });
+    }
+
+    private static Tags serviceTags(final Class<?> serviceClass, final String method) {
+        return Tags.of("class", serviceClass.getSimpleName(), "method", method);
+    }
+
+    /**
+     * Timers are cached per tags, outcome and exception, so a finished call only looks up the timer in a map,
+     * instead of building the tags and registering the timer again.
+     */
+    private static Timer prepareTimer(final MeterRegistry meterRegistry,
+                                      final String name,
+                                      final Tags tags,
+                                      final SignalType signal,
+                                      final boolean emitted,
+                                      final Throwable error) {
+        final TimerKey timerKey = new TimerKey(meterRegistry, name, tags, prepareOutcome(signal, emitted),
+                isNull(error) ? NO_EXCEPTION : error.getClass().getSimpleName());
+        return TIMERS.computeIfAbsent(timerKey, key -> Timer.builder(key.name())
+                .tags(key.tags())
+                .tag("outcome", key.outcome())
+                .tag("exception", key.exception())
+                .register(key.meterRegistry()));
+    }
+
+    private static String prepareOutcome(final SignalType signal, final boolean emitted) {
+        return switch (signal) {
+            case ON_ERROR -> OUTCOME_ERROR;
+            case CANCEL -> OUTCOME_CANCELLED;
+            default -> emitted ? OUTCOME_SUCCESS : OUTCOME_EMPTY;
+        };
+    }
+
+    private record TimerKey(MeterRegistry meterRegistry, String name, Tags tags, String outcome, String exception) {
+    }
+}
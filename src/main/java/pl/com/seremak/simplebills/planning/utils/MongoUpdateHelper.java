@@ -0,0 +1,48 @@
+package pl.com.seremak.simplebills.planning.utils;
+
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Decimal128;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static java.util.Objects.isNull;
+
+public class MongoUpdateHelper {
+
+    public static final String ID_FIELD = "_id";
+    public static final String SET_ON_INSERT = "$setOnInsert";
+    public static final String REVISION_FIELD = "revision";
+
+    public static Decimal128 toDecimal128(final BigDecimal value) {
+        return new Decimal128(isNull(value) ? BigDecimal.ZERO : value);
+    }
+
+    /**
+     * Change counter of the document. Every update increments it, inserted documents start without it, i.e. at zero.
+     */
+    public static Bson incrementRevision() {
+        return Updates.inc(REVISION_FIELD, 1L);
+    }
+
+    public static long readRevision(final Document document) {
+        return document.get(REVISION_FIELD) instanceof Number revision ? revision.longValue() : 0L;
+    }
+
+    /**
+     * Maps given entity to the document used in $setOnInsert. Fields modified by other operators of the same update
+     * (e.g. $inc) have to be excluded, otherwise MongoDB rejects the update with a path conflict.
+     */
+    public static Document prepareSetOnInsertDocument(final MongoConverter converter,
+                                                      final Object entity,
+                                                      final String... excludedFields) {
+        final Document document = new Document();
+        converter.write(entity, document);
+        document.remove(ID_FIELD);
+        List.of(excludedFields).forEach(document::remove);
+        return document;
+    }
+}
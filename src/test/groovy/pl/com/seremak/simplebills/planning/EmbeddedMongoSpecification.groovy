@@ -0,0 +1,21 @@
+package pl.com.seremak.simplebills.planning
+
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Base of specifications running against the shared embedded Mongo. The database is dropped before each feature,
+ * so features do not see documents of each other.
+ */
+abstract class EmbeddedMongoSpecification extends Specification {
+
+    @Shared
+    EmbeddedMongo embeddedMongo = EmbeddedMongo.shared()
+
+    ReactiveMongoTemplate mongoTemplate = embeddedMongo.mongoTemplate()
+
+    def setup() {
+        embeddedMongo.dropDatabase()
+    }
+}
@@ -0,0 +1,104 @@
+package pl.com.seremak.simplebills.planning.repository
+
+import com.mongodb.client.model.IndexOptions
+import com.mongodb.client.model.Indexes
+import pl.com.seremak.simplebills.commons.model.CategoryUsageLimit
+import pl.com.seremak.simplebills.planning.EmbeddedMongoSpecification
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+
+class CategoryUsageLimitSearchRepositorySpec extends EmbeddedMongoSpecification {
+
+    static final String USERNAME = 'user'
+    static final String CATEGORY_NAME = 'food'
+    static final String YEAR_MONTH = '2026-10'
+
+    CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository = new CategoryUsageLimitSearchRepository(mongoTemplate)
+
+    def setup() {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(CategoryUsageLimit))
+                .flatMap { collection ->
+                    Mono.from(collection.createIndex(Indexes.ascending('username', 'yearMonth', 'categoryName'), new IndexOptions().unique(true)))
+                }
+                .block()
+    }
+
+    def 'should create limit with zero usage'() {
+        when:
+        def created = categoryUsageLimitSearchRepository.upsertLimit(categoryUsageLimit(YEAR_MONTH, 100, 7)).block()
+
+        then:
+        created.entity().limit == 100
+        created.entity().usage == 0
+        created.revision() == 1
+    }
+
+    def 'should keep usage incremented concurrently with limit updates'() {
+        given:
+        def increments = 50
+        def limitUpdates = 10
+        categoryUsageLimitSearchRepository.upsertUsage(categoryUsageLimit(YEAR_MONTH, 100, 5)).block()
+
+        when:
+        Flux.merge(
+                Flux.range(0, increments).flatMap {
+                    categoryUsageLimitSearchRepository.incrementUsage(categoryUsageLimit(YEAR_MONTH, null, 1)).subscribeOn(Schedulers.parallel())
+                },
+                Flux.range(0, limitUpdates).flatMap {
+                    categoryUsageLimitSearchRepository.upsertLimit(categoryUsageLimit(YEAR_MONTH, 200, 0)).subscribeOn(Schedulers.parallel())
+                })
+                .blockLast()
+
+        then:
+        def stored = categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(USERNAME, YEAR_MONTH).single().block()
+        stored.entity().usage == 5 + increments
+        stored.entity().limit == 200
+        stored.revision() == 1 + increments + limitUpdates
+    }
+
+    def 'should not create document when incrementing missing usage'() {
+        expect:
+        categoryUsageLimitSearchRepository.incrementUsage(categoryUsageLimit(YEAR_MONTH, null, 1)).blockOptional().isEmpty()
+    }
+
+    def 'should set limit only of later months'() {
+        given:
+        ['2026-09', YEAR_MONTH, '2026-11'].each { yearMonth ->
+            categoryUsageLimitSearchRepository.upsertUsage(categoryUsageLimit(yearMonth, 100, 1)).block()
+        }
+
+        when:
+        categoryUsageLimitSearchRepository.updateLimitAfter(USERNAME, CATEGORY_NAME, YEAR_MONTH, 300G).block()
+
+        then:
+        categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(USERNAME, '2026-01', '2026-12', CATEGORY_NAME)
+                .map { it.limit }
+                .collectList()
+                .block() == [100, 100, 300]
+    }
+
+    def 'should skip already existing category usage limits when inserting'() {
+        given:
+        categoryUsageLimitSearchRepository.upsertUsage(categoryUsageLimit(YEAR_MONTH, 100, 5)).block()
+
+        when:
+        def inserted = categoryUsageLimitSearchRepository.insertAllIfNotExist([
+                categoryUsageLimit(YEAR_MONTH, 100, 0),
+                categoryUsageLimit('2026-11', 100, 0)]).block()
+
+        then:
+        inserted == 1
+        categoryUsageLimitSearchRepository.findCategoryUsageLimitsWithUsage(USERNAME, YEAR_MONTH).single().block().entity().usage == 5
+    }
+
+    private static CategoryUsageLimit categoryUsageLimit(String yearMonth, Number limit, Number usage) {
+        CategoryUsageLimit.builder()
+                .username(USERNAME)
+                .categoryName(CATEGORY_NAME)
+                .yearMonth(yearMonth)
+                .limit(limit as BigDecimal)
+                .usage(usage as BigDecimal)
+                .build()
+    }
+}
@@ -0,0 +1,121 @@
+package pl.com.seremak.simplebills.planning.repository
+
+import org.bson.Document
+import org.bson.types.ObjectId
+import pl.com.seremak.simplebills.planning.EmbeddedMongoSpecification
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+
+import java.time.Duration
+
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.CREATED_AT_FIELD
+import static pl.com.seremak.simplebills.planning.repository.OutboxSearchRepository.OUTBOX_COLLECTION
+import static pl.com.seremak.simplebills.planning.utils.MongoUpdateHelper.ID_FIELD
+
+class OutboxSearchRepositorySpec extends EmbeddedMongoSpecification {
+
+    static final Duration LEASE = Duration.ofMinutes(1)
+    static final int MESSAGES = 20
+
+    OutboxSearchRepository outboxSearchRepository = new OutboxSearchRepository(mongoTemplate)
+
+    def setup() {
+        outboxSearchRepository.ensureIndex().block()
+    }
+
+    def 'should claim disjoint batches by concurrent relays'() {
+        given:
+        insertMessages(MESSAGES)
+
+        when:
+        def claimedIds = Flux.range(0, 4)
+                .flatMap { relay -> claimIds("relay-$relay", MESSAGES, LEASE).subscribeOn(Schedulers.parallel()) }
+                .collectList()
+                .block()
+                .flatten()
+
+        then:
+        claimedIds.size() == MESSAGES
+        claimedIds.toSet().size() == MESSAGES
+    }
+
+    def 'should not claim messages under active lease'() {
+        given:
+        insertMessages(2)
+
+        expect:
+        claimIds('relay-1', 10, LEASE).block().size() == 2
+        claimIds('relay-2', 10, LEASE).block().isEmpty()
+    }
+
+    def 'should reclaim messages whose lease expired'() {
+        given:
+        insertMessages(1)
+        def firstClaim = claimIds('relay-1', 10, Duration.ofMillis(1)).block()
+        sleep(50)
+
+        when:
+        def secondClaim = outboxSearchRepository.claimBatch('relay-2', 10, LEASE).collectList().block()
+
+        then:
+        secondClaim*.getObjectId(ID_FIELD) == firstClaim
+        secondClaim*.getInteger('attempts') == [2]
+    }
+
+    def 'should claim oldest messages in creation order'() {
+        given:
+        def insertedIds = insertMessages(5)
+
+        expect:
+        claimIds('relay-1', 3, LEASE).block() == insertedIds.subList(0, 3)
+    }
+
+    def 'should find creation time of oldest claimable message'() {
+        given:
+        def insertedIds = insertMessages(2)
+        claimIds('relay-1', 1, LEASE).block()
+        def secondCreatedAt = mongoTemplate.getCollection(OUTBOX_COLLECTION)
+                .flatMap { collection -> Mono.from(collection.find(new Document(ID_FIELD, insertedIds[1])).first()) }
+                .map { document -> document.getDate(CREATED_AT_FIELD) }
+                .block()
+
+        expect:
+        outboxSearchRepository.findOldestClaimableCreatedAt().block() == secondCreatedAt
+
+        when:
+        claimIds('relay-1', 1, LEASE).block()
+
+        then:
+        !outboxSearchRepository.findOldestClaimableCreatedAt().blockOptional().present
+    }
+
+    def 'should delete confirmed messages'() {
+        given:
+        def insertedIds = insertMessages(3)
+
+        expect:
+        outboxSearchRepository.deleteAll(insertedIds.subList(0, 2)).block() == 2
+        claimIds('relay-1', 10, LEASE).block() == [insertedIds[2]]
+    }
+
+    /**
+     * Messages are inserted one by one, a few milliseconds apart, so their creation times are distinct.
+     */
+    private List<ObjectId> insertMessages(int count) {
+        Flux.range(0, count)
+                .concatMap { message ->
+                    outboxSearchRepository.insert('exchange', 'routingKey', 'payloadType', "payload-$message".toString())
+                            .delayElement(Duration.ofMillis(2))
+                }
+                .map { document -> document.getObjectId(ID_FIELD) }
+                .collectList()
+                .block()
+    }
+
+    private Mono<List<ObjectId>> claimIds(String owner, int batchSize, Duration lease) {
+        outboxSearchRepository.claimBatch(owner, batchSize, lease)
+                .map { document -> document.getObjectId(ID_FIELD) }
+                .collectList()
+    }
+}
@@ -0,0 +1,141 @@
+package pl.com.seremak.simplebills.planning.service
+
+import org.bson.Document
+import pl.com.seremak.simplebills.commons.model.Category
+import pl.com.seremak.simplebills.planning.repository.CategorySearchRepository
+import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository
+import pl.com.seremak.simplebills.planning.repository.JobLeaseSearchRepository
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.YearMonth
+
+import static pl.com.seremak.simplebills.planning.TestTransactions.OBJECT_MAPPER
+import static pl.com.seremak.simplebills.planning.repository.JobLeaseSearchRepository.CHECKPOINT_FIELD
+
+class MonthRolloverJobSpec extends Specification {
+
+    static final String JOB_NAME = 'month-rollover'
+    static final YearMonth YEAR_MONTH = YearMonth.of(2026, 11)
+    static final int BATCH_SIZE = 2
+
+    JobLeaseSearchRepository jobLeaseSearchRepository = Mock()
+    CategorySearchRepository categorySearchRepository = Mock()
+    CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository = Mock()
+    MonthRolloverJob monthRolloverJob = new MonthRolloverJob(jobLeaseSearchRepository, categorySearchRepository,
+            categoryUsageLimitSearchRepository, true, 3, BATCH_SIZE, Duration.ofMinutes(5))
+
+    def setup() {
+        categoryUsageLimitSearchRepository.insertAllIfNotExist(_) >> { Collection categoryUsageLimits -> Mono.just(categoryUsageLimits.size()) }
+    }
+
+    def 'should save checkpoint with each page until completed'() {
+        given:
+        def checkpoints = []
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        1 * jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >> Mono.just(leaseDocument(null))
+        1 * categorySearchRepository.findTrackedCategoriesPage(null, null, BATCH_SIZE) >>
+                Flux.just(category('user-1', 'food'), category('user-1', 'travel'))
+        1 * categorySearchRepository.findTrackedCategoriesPage('user-1', 'travel', BATCH_SIZE) >> Flux.just(category('user-2', 'food'))
+        2 * jobLeaseSearchRepository.renew(JOB_NAME, _, _, _) >> { String name, String owner, Duration lease, Document checkpoint ->
+            checkpoints << checkpoint
+            Mono.just(true)
+        }
+        1 * jobLeaseSearchRepository.release(JOB_NAME, _) >> Mono.empty()
+        checkpoints.collect { [it.getString('lastUsername'), it.getBoolean('completed')] } == [['user-1', false], ['user-2', true]]
+    }
+
+    def 'should resume after checkpoint of interrupted run'() {
+        given:
+        jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >> Mono.just(leaseDocument(checkpoint(YEAR_MONTH, 'user-1', 'travel', false)))
+        jobLeaseSearchRepository.renew(JOB_NAME, _, _, _) >> Mono.just(true)
+        jobLeaseSearchRepository.release(JOB_NAME, _) >> Mono.empty()
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        0 * categorySearchRepository.findTrackedCategoriesPage(null, null, _)
+        1 * categorySearchRepository.findTrackedCategoriesPage('user-1', 'travel', BATCH_SIZE) >> Flux.just(category('user-2', 'food'))
+        1 * categoryUsageLimitSearchRepository.insertAllIfNotExist(_) >> Mono.just(1)
+    }
+
+    def 'should start from beginning when checkpoint is of another month'() {
+        given:
+        jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >>
+                Mono.just(leaseDocument(checkpoint(YEAR_MONTH.minusMonths(1), 'user-9', 'food', true)))
+        jobLeaseSearchRepository.renew(JOB_NAME, _, _, _) >> Mono.just(true)
+        jobLeaseSearchRepository.release(JOB_NAME, _) >> Mono.empty()
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        1 * categorySearchRepository.findTrackedCategoriesPage(null, null, BATCH_SIZE) >> Flux.empty()
+    }
+
+    def 'should skip completed rollover'() {
+        given:
+        jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >> Mono.just(leaseDocument(checkpoint(YEAR_MONTH, 'user-2', 'food', true)))
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        0 * categorySearchRepository.findTrackedCategoriesPage(*_)
+        1 * jobLeaseSearchRepository.release(JOB_NAME, _) >> Mono.empty()
+    }
+
+    def 'should stop and release lease when lease is lost'() {
+        given:
+        jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >> Mono.just(leaseDocument(null))
+        jobLeaseSearchRepository.renew(JOB_NAME, _, _, _) >> Mono.just(false)
+        categorySearchRepository.findTrackedCategoriesPage(null, null, BATCH_SIZE) >>
+                Flux.just(category('user-1', 'food'), category('user-1', 'travel'))
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        thrown(IllegalStateException)
+        0 * categorySearchRepository.findTrackedCategoriesPage('user-1', _, _)
+        1 * jobLeaseSearchRepository.release(JOB_NAME, _) >> Mono.empty()
+    }
+
+    def 'should not roll over when another replica holds lease'() {
+        given:
+        jobLeaseSearchRepository.acquire(JOB_NAME, _, _) >> Mono.empty()
+
+        when:
+        monthRolloverJob.rollOver(YEAR_MONTH).block()
+
+        then:
+        0 * categorySearchRepository.findTrackedCategoriesPage(*_)
+        0 * jobLeaseSearchRepository.release(*_)
+    }
+
+    private static Document leaseDocument(Document checkpoint) {
+        def leaseDocument = new Document('_id', JOB_NAME)
+        if (checkpoint != null) {
+            leaseDocument.append(CHECKPOINT_FIELD, checkpoint)
+        }
+        leaseDocument
+    }
+
+    private static Document checkpoint(YearMonth yearMonth, String lastUsername, String lastCategoryName, boolean completed) {
+        new Document('yearMonth', yearMonth.toString())
+                .append('lastUsername', lastUsername)
+                .append('lastCategoryName', lastCategoryName)
+                .append('completed', completed)
+    }
+
+    private static Category category(String username, String name) {
+        OBJECT_MAPPER.convertValue([username: username, name: name], Category)
+    }
+}
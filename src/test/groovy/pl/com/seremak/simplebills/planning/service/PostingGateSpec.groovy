@@ -0,0 +1,83 @@
+package pl.com.seremak.simplebills.planning.service
+
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+class PostingGateSpec extends Specification {
+
+    static final Duration TIMEOUT = Duration.ofSeconds(5)
+    static final Duration SHORT_WAIT = Duration.ofMillis(100)
+
+    PostingGate postingGate = new PostingGate()
+
+    def 'should close only after postings in flight finish'() {
+        given:
+        Sinks.Empty<Void> posting = Sinks.empty()
+        postingGate.guard { posting.asMono() }.subscribe()
+
+        when:
+        def closing = postingGate.close(TIMEOUT).toFuture()
+        sleep(SHORT_WAIT.toMillis())
+
+        then:
+        !closing.isDone()
+
+        when:
+        posting.tryEmitEmpty()
+        closing.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+
+        then:
+        noExceptionThrown()
+    }
+
+    def 'should hold postings started while closed until opened'() {
+        given:
+        def startedPostings = new AtomicInteger()
+        postingGate.close(TIMEOUT).block()
+
+        when:
+        def posting = postingGate.guard { Mono.fromSupplier { startedPostings.incrementAndGet() } }.toFuture()
+        sleep(SHORT_WAIT.toMillis())
+
+        then:
+        startedPostings.get() == 0
+
+        when:
+        postingGate.open()
+
+        then:
+        posting.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS) == 1
+    }
+
+    def 'should open again when postings in flight do not finish in time'() {
+        given:
+        postingGate.guard { Mono.never() }.subscribe()
+
+        when:
+        postingGate.close(SHORT_WAIT).block(TIMEOUT)
+
+        then:
+        def error = thrown(RuntimeException)
+        error.cause instanceof TimeoutException || error instanceof TimeoutException
+
+        and:
+        postingGate.guard { Mono.just('posted') }.block(TIMEOUT) == 'posted'
+    }
+
+    def 'should reject closing when already closed'() {
+        given:
+        postingGate.close(TIMEOUT).block()
+
+        when:
+        postingGate.close(TIMEOUT).block(TIMEOUT)
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
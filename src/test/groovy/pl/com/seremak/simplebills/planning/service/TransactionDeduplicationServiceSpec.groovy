@@ -0,0 +1,112 @@
+package pl.com.seremak.simplebills.planning.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import pl.com.seremak.simplebills.commons.exceptions.ConflictException
+import pl.com.seremak.simplebills.planning.EmbeddedMongoSpecification
+import pl.com.seremak.simplebills.planning.repository.ProcessedTransactionSearchRepository
+import reactor.core.publisher.Flux
+import reactor.core.scheduler.Schedulers
+
+import java.time.Duration
+
+class TransactionDeduplicationServiceSpec extends EmbeddedMongoSpecification {
+
+    static final Duration PENDING_TIMEOUT = Duration.ofMinutes(1)
+
+    ProcessedTransactionSearchRepository processedTransactionSearchRepository = new ProcessedTransactionSearchRepository(mongoTemplate)
+    TransactionDeduplicationService transactionDeduplicationService = prepareDeduplicationService(PENDING_TIMEOUT)
+
+    def 'should skip completed transaction when redelivered'() {
+        given:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+        transactionDeduplicationService.complete('message-1').block()
+
+        expect:
+        !transactionDeduplicationService.registerIfFirst('message-1').block()
+        !prepareDeduplicationService(PENDING_TIMEOUT).registerIfFirst('message-1').block()
+    }
+
+    def 'should reject redelivery while transaction is being posted'() {
+        given:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+
+        when:
+        prepareDeduplicationService(PENDING_TIMEOUT).registerIfFirst('message-1').block()
+
+        then:
+        thrown(ConflictException)
+    }
+
+    def 'should post again transaction whose posting was interrupted'() {
+        given: 'posting registered the transaction and crashed before completing it'
+        def pendingTimeout = Duration.ofMillis(100)
+        prepareDeduplicationService(pendingTimeout).registerIfFirst('message-1').block()
+        Thread.sleep(200)
+
+        expect:
+        prepareDeduplicationService(pendingTimeout).registerIfFirst('message-1').block()
+    }
+
+    def 'should post identical transactions with different identity'() {
+        expect:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+        transactionDeduplicationService.registerIfFirst('message-2').block()
+    }
+
+    def 'should treat transaction without identity as first'() {
+        expect:
+        transactionDeduplicationService.registerIfFirst(null).block()
+        transactionDeduplicationService.registerIfFirst(null).block()
+    }
+
+    def 'should register released transaction again'() {
+        given:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+
+        when:
+        transactionDeduplicationService.release('message-1').block()
+
+        then:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+    }
+
+    def 'should register concurrent redeliveries once'() {
+        when:
+        def results = Flux.range(0, 16)
+                .flatMap {
+                    prepareDeduplicationService(PENDING_TIMEOUT).registerIfFirst('message-1')
+                            .onErrorReturn(ConflictException, false)
+                            .subscribeOn(Schedulers.parallel())
+                }
+                .collectList()
+                .block()
+
+        then:
+        results.count(true) == 1
+    }
+
+    def 'should register only new transactions of batch'() {
+        given:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+        transactionDeduplicationService.complete('message-1').block()
+
+        expect:
+        prepareDeduplicationService(PENDING_TIMEOUT).registerAllIfFirst(['message-1', 'message-2', 'message-2', null]).block() == ['message-2'] as Set
+    }
+
+    def 'should reject batch with transaction being posted and release its other transactions'() {
+        given:
+        transactionDeduplicationService.registerIfFirst('message-1').block()
+
+        when:
+        prepareDeduplicationService(PENDING_TIMEOUT).registerAllIfFirst(['message-1', 'message-2']).block()
+
+        then:
+        thrown(ConflictException)
+        transactionDeduplicationService.registerIfFirst('message-2').block()
+    }
+
+    private TransactionDeduplicationService prepareDeduplicationService(Duration pendingTimeout) {
+        new TransactionDeduplicationService(processedTransactionSearchRepository, new SimpleMeterRegistry(), 100, Duration.ofDays(7), pendingTimeout)
+    }
+}
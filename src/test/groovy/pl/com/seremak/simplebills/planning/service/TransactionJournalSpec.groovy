@@ -0,0 +1,131 @@
+package pl.com.seremak.simplebills.planning.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.springframework.util.unit.DataSize
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.time.Instant
+
+import static pl.com.seremak.simplebills.planning.TestTransactions.OBJECT_MAPPER
+import static pl.com.seremak.simplebills.planning.TestTransactions.transaction
+
+class TransactionJournalSpec extends Specification {
+
+    static final DataSize SEGMENT_SIZE = DataSize.ofBytes(512)
+
+    @TempDir
+    Path directory
+
+    def 'should read closed and active segments in order of appending'() {
+        given:
+        def transactionJournal = openJournal()
+
+        when:
+        appendTransactions(transactionJournal, 0, 10)
+
+        then:
+        segmentCount() > 1
+        readUsernames(transactionJournal) == usernames(0, 10)
+
+        cleanup:
+        transactionJournal.close()
+    }
+
+    def 'should continue appending after last record when reopened'() {
+        given:
+        def transactionJournal = openJournal()
+        appendTransactions(transactionJournal, 0, 5)
+        transactionJournal.close()
+
+        when:
+        def reopenedJournal = openJournal()
+        appendTransactions(reopenedJournal, 5, 10)
+
+        then:
+        readUsernames(reopenedJournal) == usernames(0, 10)
+
+        cleanup:
+        reopenedJournal.close()
+    }
+
+    def 'should delete oldest segments over maximum count on rotation'() {
+        given:
+        def transactionJournal = openJournal(2, Duration.ZERO)
+
+        when:
+        appendTransactions(transactionJournal, 0, 20)
+
+        then:
+        segmentCount() == 2
+        def readUsernames = readUsernames(transactionJournal)
+        readUsernames.size() < 20
+        readUsernames == usernames(20 - readUsernames.size(), 20)
+
+        cleanup:
+        transactionJournal.close()
+    }
+
+    def 'should delete closed segments older than maximum age on opening'() {
+        given:
+        def transactionJournal = openJournal()
+        appendTransactions(transactionJournal, 0, 10)
+        transactionJournal.close()
+        def segmentPaths = Files.list(directory).withCloseable { it.sorted().toList() }
+        segmentPaths.each { Files.setLastModifiedTime(it, FileTime.from(Instant.now() - Duration.ofHours(2))) }
+
+        when:
+        def reopenedJournal = openJournal(0, Duration.ofHours(1))
+
+        then:
+        segmentCount() == 1
+        Files.exists(segmentPaths.last())
+        def readUsernames = readUsernames(reopenedJournal)
+        !readUsernames.isEmpty()
+        readUsernames == usernames(10 - readUsernames.size(), 10)
+
+        cleanup:
+        reopenedJournal?.close()
+    }
+
+    def 'should refuse to open in relative directory'() {
+        given:
+        def transactionJournal = new TransactionJournal(OBJECT_MAPPER, new SimpleMeterRegistry(), true, 'journal', SEGMENT_SIZE, 0, Duration.ZERO)
+
+        when:
+        transactionJournal.open()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private TransactionJournal openJournal(int maxSegments = 0, Duration maxAge = Duration.ZERO) {
+        def transactionJournal = new TransactionJournal(OBJECT_MAPPER, new SimpleMeterRegistry(), true, directory.toString(),
+                SEGMENT_SIZE, maxSegments, maxAge)
+        transactionJournal.open()
+        transactionJournal
+    }
+
+    private static void appendTransactions(TransactionJournal transactionJournal, int fromUser, int toUser) {
+        usernames(fromUser, toUser).each { transactionJournal.append(transaction(it, 'food', '-10.00')) }
+    }
+
+    private static List<String> readUsernames(TransactionJournal transactionJournal) {
+        transactionJournal.readAll()
+                .map { journalEntry -> journalEntry.transaction().username }
+                .collectList()
+                .block()
+    }
+
+    private static List<String> usernames(int fromUser, int toUser) {
+        (fromUser..<toUser).collect { "user-$it".toString() }
+    }
+
+    private long segmentCount() {
+        Files.list(directory).withCloseable { it.count() }
+    }
+}
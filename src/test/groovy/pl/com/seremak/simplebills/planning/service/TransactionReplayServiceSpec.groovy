@@ -0,0 +1,48 @@
+package pl.com.seremak.simplebills.planning.service
+
+import pl.com.seremak.simplebills.commons.exceptions.ConflictException
+import pl.com.seremak.simplebills.planning.repository.BalanceSearchRepository
+import pl.com.seremak.simplebills.planning.repository.CategoryUsageLimitSearchRepository
+import spock.lang.Specification
+
+import java.time.Duration
+
+class TransactionReplayServiceSpec extends Specification {
+
+    TransactionJournal transactionJournal = Mock()
+    BalanceSearchRepository balanceSearchRepository = Mock()
+    CategoryUsageLimitSearchRepository categoryUsageLimitSearchRepository = Mock()
+    PostingGate postingGate = Mock()
+
+    def 'should refuse to write when journal does not hold whole history'() {
+        given:
+        def transactionReplayService = prepareReplayService(false)
+
+        when:
+        transactionReplayService.replay(false).block()
+
+        then:
+        thrown(ConflictException)
+        0 * postingGate.close(_)
+        0 * transactionJournal._
+        0 * balanceSearchRepository._
+        0 * categoryUsageLimitSearchRepository._
+    }
+
+    def 'should refuse to declare whole history of journal with retention'() {
+        given:
+        transactionJournal.hasRetention() >> true
+
+        when:
+        prepareReplayService(true)
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private TransactionReplayService prepareReplayService(boolean completeHistory) {
+        new TransactionReplayService(transactionJournal, Mock(TransactionBatchPostingService), balanceSearchRepository,
+                categoryUsageLimitSearchRepository, Mock(BalanceCache), postingGate, Mock(WriteBehindDeltaAggregator),
+                completeHistory, Duration.ofSeconds(5), 1)
+    }
+}
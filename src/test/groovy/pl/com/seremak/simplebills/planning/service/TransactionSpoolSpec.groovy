@@ -0,0 +1,148 @@
+package pl.com.seremak.simplebills.planning.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.springframework.util.unit.DataSize
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.util.concurrent.PollingConditions
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+
+import static java.nio.file.StandardOpenOption.APPEND
+import static pl.com.seremak.simplebills.planning.TestTransactions.transaction
+
+class TransactionSpoolSpec extends Specification {
+
+    static final Duration NO_DRAINING = Duration.ofHours(1)
+    static final Duration DRAIN_INTERVAL = Duration.ofMillis(10)
+
+    @TempDir
+    Path directory
+
+    PartitionedTransactionExecutor partitionedTransactionExecutor = Mock()
+    List<String> submittedIds = new CopyOnWriteArrayList<>()
+    AtomicBoolean postingFails = new AtomicBoolean()
+    PollingConditions conditions = new PollingConditions(timeout: 5)
+
+    def setup() {
+        partitionedTransactionExecutor.submit(_, _) >> { String transactionId, transactionEventDto ->
+            submittedIds << transactionId
+            postingFails.get() ? Mono.error(new IllegalStateException('Database is down')) : Mono.empty()
+        }
+    }
+
+    def 'should drain transactions spooled before restart'() {
+        given:
+        spoolTransactions('tx-1', 'tx-2')
+
+        when:
+        def restartedSpool = openSpool(DRAIN_INTERVAL)
+
+        then:
+        conditions.eventually {
+            assert submittedIds == ['tx-1', 'tx-2']
+            assert Files.size(spoolFile()) == 0
+        }
+
+        cleanup:
+        restartedSpool?.close()
+    }
+
+    def 'should truncate record torn by crash'() {
+        given:
+        spoolTransactions('tx-1', 'tx-2')
+        Files.write(spoolFile(), ByteBuffer.allocate(Integer.BYTES + 3).putInt(1000).array(), APPEND)
+
+        when:
+        def restartedSpool = openSpool(DRAIN_INTERVAL)
+
+        then:
+        conditions.eventually {
+            assert submittedIds == ['tx-1', 'tx-2']
+        }
+        Files.size(quarantineFile()) == 0
+
+        cleanup:
+        restartedSpool?.close()
+    }
+
+    def 'should quarantine record which cannot be decoded'() {
+        given:
+        spoolTransactions('tx-1')
+        byte[] corruptRecord = ByteBuffer.allocate(Integer.BYTES + 5).putInt(5).put([1, 2, 3, 4, 5] as byte[]).array()
+        Files.write(spoolFile(), corruptRecord, APPEND)
+
+        when:
+        def restartedSpool = openSpool(DRAIN_INTERVAL)
+        restartedSpool.submit('tx-3', transaction('user', 'food', '-3.00')).block()
+
+        then:
+        conditions.eventually {
+            assert submittedIds == ['tx-1', 'tx-3']
+        }
+        Files.readAllBytes(quarantineFile()) == corruptRecord
+
+        cleanup:
+        restartedSpool?.close()
+    }
+
+    def 'should keep records whose posting failed and drain them one by one until posting succeeds'() {
+        given:
+        spoolTransactions('tx-1', 'tx-2')
+        postingFails.set(true)
+
+        when:
+        def restartedSpool = openSpool(DRAIN_INTERVAL)
+
+        then:
+        conditions.eventually {
+            assert submittedIds.size() > 4
+        }
+        submittedIds.subList(0, 2) == ['tx-1', 'tx-2']
+        submittedIds.drop(2).every { it == 'tx-1' }
+        Files.size(spoolFile()) > 0
+
+        when:
+        postingFails.set(false)
+
+        then:
+        conditions.eventually {
+            assert Files.size(spoolFile()) == 0
+        }
+        submittedIds.takeRight(2) == ['tx-1', 'tx-2']
+
+        cleanup:
+        restartedSpool?.close()
+    }
+
+    /**
+     * Spill threshold of zero spools every transaction, and the spool is closed before the first drain.
+     */
+    private void spoolTransactions(String... transactionIds) {
+        def spool = openSpool(NO_DRAINING)
+        transactionIds.each { spool.submit(it, transaction('user', 'food', '-10.00')).block() }
+        spool.close()
+        assert submittedIds.isEmpty()
+    }
+
+    private TransactionSpool openSpool(Duration drainInterval) {
+        def spool = new TransactionSpool(partitionedTransactionExecutor, new SimpleMeterRegistry(), true, directory.toString(),
+                0, 500, drainInterval, DataSize.ofKilobytes(64))
+        spool.open()
+        spool
+    }
+
+    private Path spoolFile() {
+        directory.resolve('transactions.spool')
+    }
+
+    private Path quarantineFile() {
+        directory.resolve('transactions.spool.quarantine')
+    }
+}
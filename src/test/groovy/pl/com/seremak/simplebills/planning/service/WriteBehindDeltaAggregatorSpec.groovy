@@ -0,0 +1,116 @@
+package pl.com.seremak.simplebills.planning.service
+
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import spock.lang.Specification
+
+import java.time.Duration
+
+import static pl.com.seremak.simplebills.planning.TestTransactions.transaction
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.balanceDeltaOf
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.usageDeltaOf
+import static pl.com.seremak.simplebills.planning.service.TransactionBatchPostingService.usageKeyOf
+
+class WriteBehindDeltaAggregatorSpec extends Specification {
+
+    static final String USERNAME = 'user'
+
+    TransactionBatchPostingService transactionBatchPostingService = Mock()
+    WriteBehindDeltaAggregator writeBehindDeltaAggregator = prepareAggregator(Duration.ofSeconds(5))
+
+    def cleanup() {
+        writeBehindDeltaAggregator.flushOnShutdown()
+    }
+
+    def 'should flush summed deltas on shutdown'() {
+        given:
+        def first = transaction(USERNAME, 'food', '-10.00')
+        def second = transaction(USERNAME, 'food', '-2.50')
+        writeBehindDeltaAggregator.add(first)
+        writeBehindDeltaAggregator.add(second)
+
+        when:
+        writeBehindDeltaAggregator.flushOnShutdown()
+
+        then:
+        1 * transactionBatchPostingService.applyUsageDeltas([(usageKeyOf(first)): usageDeltaOf(first) + usageDeltaOf(second)]) >> Mono.empty()
+        1 * transactionBatchPostingService.applyBalanceDeltas([(USERNAME): balanceDeltaOf(first) + balanceDeltaOf(second)]) >> Mono.empty()
+        writeBehindDeltaAggregator.findUnflushedBalanceDelta(USERNAME).isEmpty()
+    }
+
+    def 'should retry failed flush on shutdown'() {
+        given:
+        def transactionEventDto = transaction(USERNAME, 'food', '-10.00')
+        writeBehindDeltaAggregator.add(transactionEventDto)
+
+        when:
+        writeBehindDeltaAggregator.flushOnShutdown()
+
+        then:
+        _ * transactionBatchPostingService.applyUsageDeltas(_) >> Mono.empty()
+        2 * transactionBatchPostingService.applyBalanceDeltas([(USERNAME): balanceDeltaOf(transactionEventDto)]) >>>
+                [Mono.error(new IllegalStateException('Mongo unavailable')), Mono.empty()]
+        _ * transactionBatchPostingService.applyBalanceDeltas([:]) >> Mono.empty()
+        writeBehindDeltaAggregator.findUnflushedBalanceDelta(USERNAME).isEmpty()
+    }
+
+    def 'should give up after shutdown timeout'() {
+        given:
+        def failingAggregator = prepareAggregator(Duration.ofMillis(300))
+        transactionBatchPostingService.applyUsageDeltas(_) >> Mono.empty()
+        transactionBatchPostingService.applyBalanceDeltas(_) >> Mono.error(new IllegalStateException('Mongo unavailable'))
+        failingAggregator.add(transaction(USERNAME, 'food', '-10.00'))
+
+        when:
+        failingAggregator.flushOnShutdown()
+
+        then:
+        noExceptionThrown()
+        failingAggregator.findUnflushedBalanceDelta(USERNAME).isPresent()
+    }
+
+    def 'should keep delta visible while it is written'() {
+        given:
+        Sinks.Empty<Void> balanceWrite = Sinks.empty()
+        transactionBatchPostingService.applyUsageDeltas(_) >> Mono.empty()
+        transactionBatchPostingService.applyBalanceDeltas(_) >>> [balanceWrite.asMono(), Mono.empty()]
+        def flushed = transaction(USERNAME, 'food', '-10.00')
+        def pending = transaction(USERNAME, 'food', '-1.00')
+        writeBehindDeltaAggregator.add(flushed)
+
+        when:
+        writeBehindDeltaAggregator.flush().subscribe()
+        writeBehindDeltaAggregator.add(pending)
+
+        then:
+        writeBehindDeltaAggregator.findUnflushedBalanceDelta(USERNAME).get() == balanceDeltaOf(flushed) + balanceDeltaOf(pending)
+
+        when:
+        balanceWrite.tryEmitEmpty()
+
+        then:
+        writeBehindDeltaAggregator.findUnflushedBalanceDelta(USERNAME).get() == balanceDeltaOf(pending)
+    }
+
+    def 'should return only deltas of failed write to pending'() {
+        given:
+        def transactionEventDto = transaction(USERNAME, 'food', '-10.00')
+        writeBehindDeltaAggregator.add(transactionEventDto)
+
+        when:
+        writeBehindDeltaAggregator.flush().block()
+        writeBehindDeltaAggregator.flush().block()
+
+        then:
+        2 * transactionBatchPostingService.applyUsageDeltas([(usageKeyOf(transactionEventDto)): usageDeltaOf(transactionEventDto)]) >>>
+                [Mono.error(new IllegalStateException('Mongo unavailable')), Mono.empty()]
+        1 * transactionBatchPostingService.applyBalanceDeltas([(USERNAME): balanceDeltaOf(transactionEventDto)]) >> Mono.empty()
+        1 * transactionBatchPostingService.applyBalanceDeltas([:]) >> Mono.empty()
+    }
+
+    private WriteBehindDeltaAggregator prepareAggregator(Duration shutdownTimeout) {
+        def aggregator = new WriteBehindDeltaAggregator(transactionBatchPostingService, true, Duration.ofHours(1), 1000, shutdownTimeout)
+        aggregator.startScheduledFlush()
+        aggregator
+    }
+}
@@ -0,0 +1,88 @@
+package pl.com.seremak.simplebills.planning;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfig;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import pl.com.seremak.simplebills.planning.config.MongoReactiveConfig;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Standalone embedded Mongo shared by all tests of the JVM. It is started on first use and stopped when the JVM exits,
+ * so specifications and the load test do not start a mongod each. The template uses the converter of the application,
+ * so amounts are stored as Decimal128.
+ */
+public final class EmbeddedMongo {
+
+    private static final String TEST_DATABASE = "planning-test";
+    private static EmbeddedMongo sharedInstance;
+
+    private final MongodExecutable mongodExecutable;
+    private final String connectionString;
+    private final MongoClient mongoClient;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    private EmbeddedMongo(final MongodExecutable mongodExecutable, final int port) {
+        this.mongodExecutable = mongodExecutable;
+        this.connectionString = "mongodb://localhost:%d".formatted(port);
+        this.mongoClient = MongoClients.create(connectionString);
+        this.mongoTemplate = new ReactiveMongoTemplate(new SimpleReactiveMongoDatabaseFactory(mongoClient, TEST_DATABASE),
+                new MongoReactiveConfig().mappingMongoConverter());
+    }
+
+    public static synchronized EmbeddedMongo shared() {
+        if (isNull(sharedInstance)) {
+            sharedInstance = start();
+            Runtime.getRuntime().addShutdownHook(new Thread(sharedInstance::stop));
+        }
+        return sharedInstance;
+    }
+
+    public String connectionString() {
+        return connectionString;
+    }
+
+    public MongoClient mongoClient() {
+        return mongoClient;
+    }
+
+    public ReactiveMongoTemplate mongoTemplate() {
+        return mongoTemplate;
+    }
+
+    public void dropDatabase() {
+        mongoTemplate.getMongoDatabase()
+                .flatMap(database -> Mono.from(database.drop()))
+                .block();
+    }
+
+    private static EmbeddedMongo start() {
+        try {
+            final int port = Network.getFreeServerPort();
+            final MongodExecutable mongodExecutable = MongodStarter.getDefaultInstance().prepare(MongodConfig.builder()
+                    .version(Version.Main.V5_0)
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .build());
+            mongodExecutable.start();
+            return new EmbeddedMongo(mongodExecutable, port);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot start embedded Mongo", e);
+        }
+    }
+
+    private void stop() {
+        mongoClient.close();
+        mongodExecutable.stop();
+    }
+}
@@ -0,0 +1,29 @@
+package pl.com.seremak.simplebills.planning;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.planning.config.ObjectMapperConfig;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Transactions are built from their JSON form with the application mapper, so tests do not depend on constructors
+ * of the DTO.
+ */
+public final class TestTransactions {
+
+    public static final ObjectMapper OBJECT_MAPPER = new ObjectMapperConfig().objectMapper();
+
+    private TestTransactions() {
+    }
+
+    public static TransactionEventDto transaction(final String username, final String categoryName, final String amount) {
+        return OBJECT_MAPPER.convertValue(Map.of(
+                "username", username,
+                "category_name", categoryName,
+                "amount", new BigDecimal(amount),
+                "date", Instant.now().toString()), TransactionEventDto.class);
+    }
+}
@@ -0,0 +1,48 @@
+package pl.com.seremak.simplebills.planning.loadtest;
+
+import org.mockito.Mockito;
+import org.reactivestreams.Publisher;
+import org.springframework.amqp.rabbit.config.AbstractRabbitListenerContainerFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import reactor.core.publisher.Flux;
+import reactor.rabbitmq.OutboundMessage;
+import reactor.rabbitmq.OutboundMessageResult;
+import reactor.rabbitmq.SendOptions;
+import reactor.rabbitmq.Sender;
+
+import static org.mockito.ArgumentMatchers.any;
+
+/**
+ * Replaces the broker in load tests. Listener containers are not started, so messages are delivered by calling
+ * listener methods directly, and the sender confirms every published message at once.
+ */
+@TestConfiguration
+public class InProcessAmqpStandIn {
+
+    @Bean
+    public static BeanPostProcessor listenerContainersAutoStartupDisabler() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(final Object bean, final String beanName) {
+                if (bean instanceof AbstractRabbitListenerContainerFactory<?> containerFactory) {
+                    containerFactory.setAutoStartup(false);
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    @Primary
+    @SuppressWarnings("unchecked")
+    public Sender confirmingSender() {
+        final Sender sender = Mockito.mock(Sender.class);
+        Mockito.when(sender.sendWithTypedPublishConfirms(any(Publisher.class), any(SendOptions.class)))
+                .thenAnswer(invocation -> Flux.from(invocation.<Publisher<OutboundMessage>>getArgument(0))
+                        .map(message -> new OutboundMessageResult<>(message, true, false)));
+        return sender;
+    }
+}
@@ -0,0 +1,147 @@
+package pl.com.seremak.simplebills.planning.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+import pl.com.seremak.simplebills.commons.model.Category;
+import pl.com.seremak.simplebills.planning.EmbeddedMongo;
+import pl.com.seremak.simplebills.planning.messageQueue.MessageListener;
+import pl.com.seremak.simplebills.planning.service.StandardCategoriesTemplate;
+import pl.com.seremak.simplebills.planning.service.UserSetupService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.security.test.web.reactive.server.SecurityMockServerConfigurers.mockJwt;
+
+/**
+ * Posts a synthetic workload through the message listener and through the HTTP endpoint against embedded Mongo
+ * and reports throughput and latency percentiles. Run with ./gradlew loadTest, it is excluded from the regular build.
+ * Latency histograms are written in HdrHistogram percentile format to build/reports/load-test. It stays a JUnit test,
+ * unlike the Spock specifications, because the loadTest task selects it by its JUnit tag.
+ */
+@Slf4j
+@Tag("load")
+@ActiveProfiles({"local", "loadtest"})
+@Import(InProcessAmqpStandIn.class)
+@AutoConfigureWebTestClient(timeout = "PT30S")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class PostingLoadTest {
+
+    private static final Path REPORTS_DIRECTORY = Path.of("build", "reports", "load-test");
+    private static final long HIGHEST_TRACKABLE_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    @Autowired
+    private MessageListener messageListener;
+    @Autowired
+    private UserSetupService userSetupService;
+    @Autowired
+    private StandardCategoriesTemplate standardCategoriesTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private WebTestClient webTestClient;
+
+    private final SyntheticWorkload workload = SyntheticWorkload.fromSystemProperties();
+
+    @DynamicPropertySource
+    static void embeddedMongoProperties(final DynamicPropertyRegistry registry) {
+        registry.add("spring.data.mongodb.uri", () -> EmbeddedMongo.shared().connectionString());
+    }
+
+    @Test
+    void postTransactionsThroughMessageListener() throws IOException {
+        run("message-listener", transactionEventDto -> messageListener.receiveTransactionMessageWithManualAck(
+                MessageBuilder.withPayload(transactionEventDto)
+                        .setHeader(AmqpHeaders.MESSAGE_ID, UUID.randomUUID().toString())
+                        .build()));
+    }
+
+    @Test
+    void postTransactionsThroughEndpoint() throws IOException {
+        run("http-endpoint", transactionEventDto -> Mono.fromRunnable(() -> webTestClient
+                        .mutateWith(mockJwt().jwt(jwt -> jwt
+                                .subject(transactionEventDto.getUsername())
+                                .claim("preferred_username", transactionEventDto.getUsername())))
+                        .post()
+                        .uri("/transactionsEvents")
+                        .contentType(APPLICATION_JSON)
+                        .bodyValue(transactionEventDto)
+                        .exchange()
+                        .expectStatus().isOk())
+                .subscribeOn(Schedulers.boundedElastic())
+                .then());
+    }
+
+    private void run(final String scenario, final Function<TransactionEventDto, Mono<Void>> posting) throws IOException {
+        userSetupService.setupUsers(workload.usernames()).block();
+        final List<TransactionEventDto> transactions = workload.transactions(objectMapper, findExpenseCategoryNames()).toList();
+        final Histogram latencies = new Histogram(HIGHEST_TRACKABLE_LATENCY_MICROS, 3);
+        final long start = System.nanoTime();
+        Flux.fromIterable(transactions)
+                .flatMap(transactionEventDto -> measure(posting.apply(transactionEventDto), latencies), workload.concurrency())
+                .blockLast();
+        report(scenario, latencies, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private List<String> findExpenseCategoryNames() {
+        return standardCategoriesTemplate.findStandardCategories()
+                .blockOptional()
+                .orElseThrow()
+                .stream()
+                .filter(category -> Category.TransactionType.EXPENSE.equals(category.getTransactionType()))
+                .map(Category::getName)
+                .toList();
+    }
+
+    /**
+     * Failed postings are recorded too, so errors under load show up as latency rather than stopping the run.
+     */
+    private static Mono<Void> measure(final Mono<Void> posting, final Histogram latencies) {
+        return Mono.defer(() -> {
+            final long postingStart = System.nanoTime();
+            return posting
+                    .onErrorResume(error -> Mono.empty())
+                    .doFinally(signal -> {
+                        synchronized (latencies) {
+                            latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - postingStart), HIGHEST_TRACKABLE_LATENCY_MICROS));
+                        }
+                    });
+        });
+    }
+
+    private void report(final String scenario, final Histogram latencies, final Duration duration) throws IOException {
+        final double throughput = latencies.getTotalCount() * 1_000_000_000d / duration.toNanos();
+        log.info("{}: {}, {} transactions in {} ms, throughput={}/s, p50={} us, p99={} us, p999={} us",
+                scenario, workload, latencies.getTotalCount(), duration.toMillis(), "%.1f".formatted(throughput),
+                latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99), latencies.getValueAtPercentile(99.9));
+        Files.createDirectories(REPORTS_DIRECTORY);
+        try (final PrintStream histogramOutput = new PrintStream(Files.newOutputStream(REPORTS_DIRECTORY.resolve(scenario + ".hgrm")))) {
+            latencies.outputPercentileDistribution(histogramOutput, 1000.0);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package pl.com.seremak.simplebills.planning.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import pl.com.seremak.simplebills.commons.dto.queue.TransactionEventDto;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic stream of transactions of many users. Categories are drawn from a Zipf distribution, so a few categories
+ * get most transactions, and a part of transactions is dated around the boundary of the current and the next month.
+ * Every parameter can be overridden with a system property, e.g. -DloadTest.users=10000.
+ */
+record SyntheticWorkload(int users, int transactions, int concurrency, double categorySkew, double monthBoundaryRatio, long seed) {
+
+    private static final String USERNAME_PREFIX = "load-test-user-";
+
+    static SyntheticWorkload fromSystemProperties() {
+        return new SyntheticWorkload(
+                Integer.getInteger("loadTest.users", 1000),
+                Integer.getInteger("loadTest.transactions", 20000),
+                Integer.getInteger("loadTest.concurrency", 32),
+                Double.parseDouble(System.getProperty("loadTest.categorySkew", "1.2")),
+                Double.parseDouble(System.getProperty("loadTest.monthBoundaryRatio", "0.2")),
+                Long.getLong("loadTest.seed", 42L));
+    }
+
+    List<String> usernames() {
+        return IntStream.range(0, users)
+                .mapToObj(userNumber -> USERNAME_PREFIX + userNumber)
+                .toList();
+    }
+
+    /**
+     * Transactions are built from their JSON form with the application mapper, so the workload does not depend
+     * on constructors of the DTO.
+     */
+    Stream<TransactionEventDto> transactions(final ObjectMapper objectMapper, final List<String> categoryNames) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final double[] cumulativeCategoryWeights = prepareZipfDistribution(categoryNames.size());
+        final Instant monthBoundary = YearMonth.now().plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+        return IntStream.range(0, transactions)
+                .mapToObj(__ -> Map.of(
+                        "username", USERNAME_PREFIX + random.nextInt(users),
+                        "category_name", categoryNames.get(drawCategory(random, cumulativeCategoryWeights)),
+                        "amount", BigDecimal.valueOf(-random.nextInt(1, 100_000), 2),
+                        "date", drawDate(random, monthBoundary).toString()))
+                .map(transaction -> objectMapper.convertValue(transaction, TransactionEventDto.class));
+    }
+
+    private double[] prepareZipfDistribution(final int categoriesCount) {
+        final double[] cumulativeWeights = new double[categoriesCount];
+        double weightsSum = 0;
+        for (int rank = 0; rank < categoriesCount; rank++) {
+            weightsSum += 1 / Math.pow(rank + 1, categorySkew);
+            cumulativeWeights[rank] = weightsSum;
+        }
+        for (int rank = 0; rank < categoriesCount; rank++) {
+            cumulativeWeights[rank] /= weightsSum;
+        }
+        return cumulativeWeights;
+    }
+
+    private static int drawCategory(final SplittableRandom random, final double[] cumulativeWeights) {
+        final double draw = random.nextDouble();
+        for (int rank = 0; rank < cumulativeWeights.length - 1; rank++) {
+            if (draw < cumulativeWeights[rank]) {
+                return rank;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * Boundary transactions fall within a minute before or after the month boundary, the rest within the current month.
+     */
+    private Instant drawDate(final SplittableRandom random, final Instant monthBoundary) {
+        if (random.nextDouble() < monthBoundaryRatio) {
+            return monthBoundary.plusSeconds(random.nextLong(-60, 60));
+        }
+        return monthBoundary.minusSeconds(random.nextLong(60, 28L * 24 * 3600));
+    }
+}